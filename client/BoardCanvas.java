@@ -0,0 +1,283 @@
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// draws the notes and pins of a BoardMirror
+// a background thread redraws only the parts of the board that changed into an offscreen image,
+// at most once per frame, and the EDT just copies the touched rectangles of that image to the screen
+// (the mirror is asked what to draw before the image is locked, so paint never waits on a mirror update)
+public class BoardCanvas extends JComponent implements BoardMirrorListener {
+    private static final long serialVersionUID = 1L;
+    
+    private static final long FRAME_NANOS = 1_000_000_000L / 60;
+    
+    // past this many pending rectangles one full redraw is cheaper
+    private static final int MAX_DIRTY_REGIONS = 256;
+    
+    // notes narrower than this on screen are drawn without their message
+    private static final int MIN_TEXT_WIDTH = 30;
+    
+    private static final Color BACKGROUND = new Color(205, 170, 125);
+    private static final Color PIN_COLOR = new Color(60, 60, 60);
+    
+    private final BoardMirror mirror;
+    private final int boardWidth;
+    private final int boardHeight;
+    private final int noteWidth;
+    private final int noteHeight;
+    private final Map<String, Color> noteColors = new HashMap<>();
+    
+    // guarded by this - board areas waiting to be redrawn
+    private List<Rectangle> dirty = new ArrayList<>();
+    private boolean fullRedraw = true;
+    private boolean running = true;
+    
+    // guarded by itself - only the render thread draws into it
+    private BufferedImage buffer;
+    private final Object bufferLock = new Object();
+    
+    private final Thread renderer;
+    
+    // the notes and pins to draw inside a pixel rectangle, looked up from the mirror
+    private static final class Area {
+        final int px1;
+        final int py1;
+        final int px2;
+        final int py2;
+        final List<BoardNote> notes;
+        final List<BoardPin> pins;
+        
+        Area(int px1, int py1, int px2, int py2, List<BoardNote> notes, List<BoardPin> pins) {
+            this.px1 = px1;
+            this.py1 = py1;
+            this.px2 = px2;
+            this.py2 = py2;
+            this.notes = notes;
+            this.pins = pins;
+        }
+    }
+    
+    public BoardCanvas(BoardMirror mirror, int boardWidth, int boardHeight, int noteWidth, int noteHeight) {
+        this.mirror = mirror;
+        this.boardWidth = boardWidth;
+        this.boardHeight = boardHeight;
+        this.noteWidth = noteWidth;
+        this.noteHeight = noteHeight;
+        setPreferredSize(new Dimension(400, 200));
+        setOpaque(true);
+        
+        addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentResized(ComponentEvent e) {
+                boardReset();
+            }
+        });
+        
+        mirror.setListener(this);
+        renderer = new Thread(this::renderLoop, "board-canvas-renderer");
+        renderer.setDaemon(true);
+        renderer.start();
+    }
+    
+    // stop drawing and let go of the mirror
+    public void dispose() {
+        mirror.setListener(null);
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+    }
+    
+    @Override
+    public synchronized void regionChanged(int x, int y, int width, int height) {
+        if (fullRedraw) {
+            return;
+        }
+        if (dirty.size() >= MAX_DIRTY_REGIONS) {
+            fullRedraw = true;
+            dirty.clear();
+        } else {
+            dirty.add(new Rectangle(x, y, width, height));
+        }
+        notifyAll();
+    }
+    
+    @Override
+    public synchronized void boardReset() {
+        fullRedraw = true;
+        dirty.clear();
+        notifyAll();
+    }
+    
+    @Override
+    protected void paintComponent(Graphics g) {
+        synchronized (bufferLock) {
+            if (buffer != null) {
+                // the clip is only the damaged rectangles, so this copies just those pixels
+                g.drawImage(buffer, 0, 0, null);
+                return;
+            }
+        }
+        g.setColor(BACKGROUND);
+        g.fillRect(0, 0, getWidth(), getHeight());
+    }
+    
+    // render thread - wait for changes, redraw them, then hold off until the next frame
+    private void renderLoop() {
+        long lastFrame = 0;
+        while (true) {
+            List<Rectangle> regions;
+            boolean full;
+            synchronized (this) {
+                while (running && !fullRedraw && dirty.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!running) {
+                    return;
+                }
+                regions = dirty;
+                full = fullRedraw;
+                dirty = new ArrayList<>();
+                fullRedraw = false;
+            }
+            
+            int width = getWidth();
+            int height = getHeight();
+            if (width > 0 && height > 0) {
+                render(regions, full, width, height);
+            }
+            
+            // cap at 60 fps, anything that changes meanwhile is picked up by the next frame
+            long sleep = FRAME_NANOS - (System.nanoTime() - lastFrame);
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep / 1_000_000, (int) (sleep % 1_000_000));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            lastFrame = System.nanoTime();
+        }
+    }
+    
+    private void render(List<Rectangle> regions, boolean full, int width, int height) {
+        double scaleX = (double) width / boardWidth;
+        double scaleY = (double) height / boardHeight;
+        
+        synchronized (bufferLock) {
+            if (buffer == null || buffer.getWidth() != width || buffer.getHeight() != height) {
+                full = true;
+            }
+        }
+        
+        if (full) {
+            // draw a whole new image off to the side and swap it in, so paint is never kept waiting
+            BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = image.createGraphics();
+            try {
+                drawArea(g, lookUp(0, 0, width, height, scaleX, scaleY), scaleX, scaleY);
+            } finally {
+                g.dispose();
+            }
+            synchronized (bufferLock) {
+                buffer = image;
+            }
+            repaint();
+            return;
+        }
+        
+        for (Rectangle region : regions) {
+            // the pixels covering this part of the board
+            int px1 = Math.max(0, (int) Math.floor(region.x * scaleX));
+            int py1 = Math.max(0, (int) Math.floor(region.y * scaleY));
+            int px2 = Math.min(width, (int) Math.ceil((region.x + region.width) * scaleX) + 1);
+            int py2 = Math.min(height, (int) Math.ceil((region.y + region.height) * scaleY) + 1);
+            if (px2 <= px1 || py2 <= py1) {
+                continue;
+            }
+            
+            Area area = lookUp(px1, py1, px2, py2, scaleX, scaleY);
+            synchronized (bufferLock) {
+                Graphics2D g = buffer.createGraphics();
+                try {
+                    drawArea(g, area, scaleX, scaleY);
+                } finally {
+                    g.dispose();
+                }
+            }
+            repaint(px1, py1, px2 - px1, py2 - py1);
+        }
+    }
+    
+    // what a pixel rectangle shows - may wait for the mirror, so never call it holding the image lock
+    private Area lookUp(int px1, int py1, int px2, int py2, double scaleX, double scaleY) {
+        // the board area those pixels show
+        int bx1 = (int) Math.floor(px1 / scaleX);
+        int by1 = (int) Math.floor(py1 / scaleY);
+        int bx2 = (int) Math.ceil(px2 / scaleX);
+        int by2 = (int) Math.ceil(py2 / scaleY);
+        List<BoardNote> notes = mirror.notesTouching(bx1, by1, bx2 - bx1 + 1, by2 - by1 + 1);
+        List<BoardPin> pins = mirror.pinsIn(bx1, by1, bx2 - bx1 + 1, by2 - by1 + 1);
+        return new Area(px1, py1, px2, py2, notes, pins);
+    }
+    
+    // redraw everything inside a pixel rectangle from scratch
+    private void drawArea(Graphics2D g, Area area, double scaleX, double scaleY) {
+        g.setClip(area.px1, area.py1, area.px2 - area.px1, area.py2 - area.py1);
+        g.setColor(BACKGROUND);
+        g.fillRect(area.px1, area.py1, area.px2 - area.px1, area.py2 - area.py1);
+        for (BoardNote note : area.notes) {
+            drawNote(g, note, scaleX, scaleY);
+        }
+        for (BoardPin pin : area.pins) {
+            drawPin(g, pin, scaleX, scaleY);
+        }
+    }
+    
+    private void drawNote(Graphics2D g, BoardNote note, double scaleX, double scaleY) {
+        int x = (int) Math.round(note.getX() * scaleX);
+        int y = (int) Math.round(note.getY() * scaleY);
+        int w = Math.max(1, (int) Math.round((note.getX() + noteWidth) * scaleX) - x);
+        int h = Math.max(1, (int) Math.round((note.getY() + noteHeight) * scaleY) - y);
+        
+        g.setColor(colorFor(note.getColor()));
+        g.fillRect(x, y, w, h);
+        g.setColor(note.isPinned() ? Color.BLACK : Color.DARK_GRAY);
+        g.drawRect(x, y, w - 1, h - 1);
+        
+        if (w >= MIN_TEXT_WIDTH && h >= 12) {
+            Shape clip = g.getClip();
+            g.clipRect(x + 2, y, w - 4, h);
+            g.drawString(note.getMessage(), x + 3, y + Math.min(h - 2, 12));
+            g.setClip(clip);
+        }
+    }
+    
+    private void drawPin(Graphics2D g, BoardPin pin, double scaleX, double scaleY) {
+        int x = (int) Math.round((pin.getX() + 0.5) * scaleX);
+        int y = (int) Math.round((pin.getY() + 0.5) * scaleY);
+        g.setColor(PIN_COLOR);
+        g.fillOval(x - 3, y - 3, 6, 6);
+    }
+    
+    // java.awt.Color's named constants for the usual names, a stable made-up color otherwise
+    private Color colorFor(String name) {
+        return noteColors.computeIfAbsent(name, n -> {
+            try {
+                return (Color) Color.class.getField(n.toLowerCase(Locale.ROOT)).get(null);
+            } catch (ReflectiveOperationException | ClassCastException e) {
+                return Color.getHSBColor((n.hashCode() & 0xff) / 255f, 0.45f, 0.95f);
+            }
+        });
+    }
+}
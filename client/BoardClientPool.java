@@ -0,0 +1,127 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+// a few pipelined connections to the same server, each command goes to the least busy one
+// commands sent through different connections can run in any order relative to each other,
+// so send dependent commands through a single BoardConnection instead
+public class BoardClientPool implements Closeable {
+    private final String host;
+    private final int port;
+    private final boolean compress;
+    private final List<BoardConnection> connections = new ArrayList<>();
+    
+    public BoardClientPool(String host, int port, int size) throws IOException {
+        this(host, port, size, false);
+    }
+    
+    // with compress every connection asks the server to deflate large responses
+    public BoardClientPool(String host, int port, int size, boolean compress) throws IOException {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Pool size must be positive");
+        }
+        this.host = host;
+        this.port = port;
+        this.compress = compress;
+        
+        try {
+            for (int i = 0; i < size; i++) {
+                connections.add(BoardConnection.connect(host, port, compress));
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+    
+    // the open connection with the fewest requests in flight, reconnecting dropped ones
+    public synchronized BoardConnection next() throws IOException {
+        BoardConnection best = null;
+        for (int i = 0; i < connections.size(); i++) {
+            BoardConnection connection = connections.get(i);
+            if (connection.isClosed()) {
+                connection = BoardConnection.connect(host, port, compress);
+                connections.set(i, connection);
+            }
+            if (best == null || connection.getPendingCount() < best.getPendingCount()) {
+                best = connection;
+            }
+        }
+        return best;
+    }
+    
+    public CompletableFuture<BoardResponse> post(int x, int y, String color, String message) {
+        return send("POST " + x + " " + y + " " + color + " " + message);
+    }
+    
+    public CompletableFuture<BoardResponse> post(int x, int y, String color, String message, long ttlSeconds) {
+        return send("POST TTL=" + ttlSeconds + " " + x + " " + y + " " + color + " " + message);
+    }
+    
+    public CompletableFuture<BoardResponse> get(String color, Integer containsX, Integer containsY, String refersTo) {
+        try {
+            return next().get(color, containsX, containsY, refersTo);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+    
+    public CompletableFuture<BoardResponse> getAt(long version, String color, Integer containsX, Integer containsY, String refersTo) {
+        try {
+            return next().getAt(version, color, containsX, containsY, refersTo);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+    
+    public CompletableFuture<BoardResponse> getPins() {
+        return send("GET PINS");
+    }
+    
+    public CompletableFuture<BoardResponse> getPinsAt(long version) {
+        return send("GET PINS AT " + version);
+    }
+    
+    public CompletableFuture<BoardResponse> getDensity(int cellsX, int cellsY) {
+        return send("GET DENSITY " + cellsX + " " + cellsY);
+    }
+    
+    public CompletableFuture<BoardResponse> countWithin(int x1, int y1, int x2, int y2) {
+        return send("COUNT within " + x1 + " " + y1 + " " + x2 + " " + y2);
+    }
+    
+    public CompletableFuture<BoardResponse> pin(int x, int y) {
+        return send("PIN " + x + " " + y);
+    }
+    
+    public CompletableFuture<BoardResponse> unpin(int x, int y) {
+        return send("UNPIN " + x + " " + y);
+    }
+    
+    public CompletableFuture<BoardResponse> shake() {
+        return send("SHAKE");
+    }
+    
+    public CompletableFuture<BoardResponse> clear() {
+        return send("CLEAR");
+    }
+    
+    // send any command line on the least busy connection
+    public CompletableFuture<BoardResponse> send(String command) {
+        try {
+            return next().send(command);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+    
+    @Override
+    public synchronized void close() {
+        for (BoardConnection connection : connections) {
+            connection.disconnect();
+        }
+        connections.clear();
+    }
+}
@@ -0,0 +1,422 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+// GUI-free connection to a bulletin board server
+// commands can be pipelined: each call sends its line right away and the returned future completes
+// when the matching response arrives, since the server always answers one connection in order
+public class BoardConnection implements Closeable {
+    private final Socket socket;
+    private final ResponseReader in;
+    private final Writer out;
+    private final Object sendLock = new Object();
+    private final ConcurrentLinkedQueue<PendingRequest> pending = new ConcurrentLinkedQueue<>();
+    private final Thread readerThread;
+    private volatile boolean closed;
+    private volatile Runnable closeListener;
+    
+    // board configuration from the handshake
+    private int boardWidth;
+    private int boardHeight;
+    private int noteWidth;
+    private int noteHeight;
+    private List<String> colors;
+    
+    // a request waiting for its response
+    private static class PendingRequest {
+        final String command;
+        final boolean multiLine;
+        final CompletableFuture<BoardResponse> future = new CompletableFuture<>();
+        
+        // for EXPORT - lines run up to END and are handed over one at a time instead of kept
+        Consumer<String> lineSink;
+        
+        PendingRequest(String command) {
+            this.command = command;
+            this.multiLine = expectsLines(command);
+        }
+    }
+    
+    private BoardConnection(Socket socket, boolean compress) throws IOException {
+        this.socket = socket;
+        this.in = new ResponseReader(socket.getInputStream());
+        this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        
+        readHandshake();
+        if (compress) {
+            requestCompression();
+        }
+        
+        readerThread = new Thread(this::readResponses, "board-connection-reader");
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+    
+    // connect and complete the handshake - fails if the server turns us away
+    public static BoardConnection connect(String host, int port) throws IOException {
+        return connect(host, port, false);
+    }
+    
+    // connect, and with compress ask the server to deflate large responses - worth it over slow links.
+    // A server that cannot compress still lets us in, it just sends everything as it is.
+    public static BoardConnection connect(String host, int port, boolean compress) throws IOException {
+        Socket socket = new Socket(host, port);
+        try {
+            return new BoardConnection(socket, compress);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+    
+    private void readHandshake() throws IOException {
+        String first = readRequiredLine();
+        if (!first.equals("OK HANDSHAKE")) {
+            throw new IOException("Server refused connection: " + first);
+        }
+        
+        String[] board = readRequiredLine().split("\\s+");
+        String[] note = readRequiredLine().split("\\s+");
+        String[] colourLine = readRequiredLine().split("\\s+");
+        if (!board[0].equals("BOARD") || !note[0].equals("NOTE") || !colourLine[0].equals("COLOURS")) {
+            throw new IOException("Unexpected handshake from server");
+        }
+        
+        try {
+            boardWidth = Integer.parseInt(board[1]);
+            boardHeight = Integer.parseInt(board[2]);
+            noteWidth = Integer.parseInt(note[1]);
+            noteHeight = Integer.parseInt(note[2]);
+            int colorCount = Integer.parseInt(colourLine[1]);
+            colors = Collections.unmodifiableList(Arrays.asList(Arrays.copyOfRange(colourLine, 2, 2 + colorCount)));
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed handshake from server");
+        }
+    }
+    
+    // COMPRESS DEFLATE, before anything else is sent - responses after its OK may be compressed
+    private void requestCompression() throws IOException {
+        out.write("COMPRESS DEFLATE\n");
+        out.flush();
+        if (readRequiredLine().startsWith("OK COMPRESS DEFLATE")) {
+            in.enableCompression();
+        }
+    }
+    
+    private String readRequiredLine() throws IOException {
+        String line = in.readLine();
+        if (line == null) {
+            throw new EOFException("Server closed the connection");
+        }
+        return line;
+    }
+    
+    public int getBoardWidth() {
+        return boardWidth;
+    }
+    
+    public int getBoardHeight() {
+        return boardHeight;
+    }
+    
+    public int getNoteWidth() {
+        return noteWidth;
+    }
+    
+    public int getNoteHeight() {
+        return noteHeight;
+    }
+    
+    public List<String> getColors() {
+        return colors;
+    }
+    
+    // whether the server agreed to compress large responses
+    public boolean isCompressed() {
+        return in.isCompressionEnabled();
+    }
+    
+    public boolean isClosed() {
+        return closed;
+    }
+    
+    // how many requests are still waiting for a response
+    public int getPendingCount() {
+        return pending.size();
+    }
+    
+    // called once when the connection ends, whether we closed it or the server did
+    public void setCloseListener(Runnable listener) {
+        this.closeListener = listener;
+    }
+    
+    // POST x y color message
+    public CompletableFuture<BoardResponse> post(int x, int y, String color, String message) {
+        return send("POST " + x + " " + y + " " + color + " " + message);
+    }
+    
+    // POST TTL=seconds x y color message - the server removes the note once its time is up, unless pinned
+    public CompletableFuture<BoardResponse> post(int x, int y, String color, String message, long ttlSeconds) {
+        return send("POST TTL=" + ttlSeconds + " " + x + " " + y + " " + color + " " + message);
+    }
+    
+    // GET with no filters
+    public CompletableFuture<BoardResponse> get() {
+        return get(null, null, null, null);
+    }
+    
+    // GET with any mix of filters, null means not filtered
+    public CompletableFuture<BoardResponse> get(String color, Integer containsX, Integer containsY, String refersTo) {
+        return send(getCommand("GET", color, containsX, containsY, refersTo));
+    }
+    
+    // GET AT - the notes as they were at an earlier board version, with the same filters as get
+    public CompletableFuture<BoardResponse> getAt(long version, String color, Integer containsX, Integer containsY, String refersTo) {
+        return send(getCommand("GET AT " + version, color, containsX, containsY, refersTo));
+    }
+    
+    private static String getCommand(String start, String color, Integer containsX, Integer containsY, String refersTo) {
+        StringBuilder command = new StringBuilder(start);
+        if (color != null) {
+            command.append(" color=").append(color);
+        }
+        if (containsX != null && containsY != null) {
+            command.append(" contains ").append(containsX).append(" ").append(containsY);
+        }
+        if (refersTo != null) {
+            command.append(" refersTo=").append(refersTo);
+        }
+        return command.toString();
+    }
+    
+    // GET PINS
+    public CompletableFuture<BoardResponse> getPins() {
+        return send("GET PINS");
+    }
+    
+    // GET PINS AT - the pins as they were at an earlier board version
+    public CompletableFuture<BoardResponse> getPinsAt(long version) {
+        return send("GET PINS AT " + version);
+    }
+    
+    // GET DENSITY - one ROW line of note counts per row of a cellsX by cellsY grid over the board
+    public CompletableFuture<BoardResponse> getDensity(int cellsX, int cellsY) {
+        return send("GET DENSITY " + cellsX + " " + cellsY);
+    }
+    
+    // COUNT within - answered as OK COUNT n
+    public CompletableFuture<BoardResponse> countWithin(int x1, int y1, int x2, int y2) {
+        return send("COUNT within " + x1 + " " + y1 + " " + x2 + " " + y2);
+    }
+    
+    public CompletableFuture<BoardResponse> pin(int x, int y) {
+        return send("PIN " + x + " " + y);
+    }
+    
+    public CompletableFuture<BoardResponse> unpin(int x, int y) {
+        return send("UNPIN " + x + " " + y);
+    }
+    
+    public CompletableFuture<BoardResponse> shake() {
+        return send("SHAKE");
+    }
+    
+    public CompletableFuture<BoardResponse> clear() {
+        return send("CLEAR");
+    }
+    
+    // send any command line and get its response
+    public CompletableFuture<BoardResponse> send(String command) {
+        PendingRequest request = new PendingRequest(command);
+        synchronized (sendLock) {
+            if (closed) {
+                request.future.completeExceptionally(new IOException("Connection closed"));
+                return request.future;
+            }
+            
+            // queue before writing so the reader always finds it
+            pending.add(request);
+            try {
+                out.write(command);
+                out.write('\n');
+                out.flush();
+            } catch (IOException e) {
+                shutdown(e);
+            }
+        }
+        return request.future;
+    }
+    
+    // IMPORT - stream NOTE/PIN lines to the server as they are read from the iterator
+    // completes with OK IMPORTED <notes> <pins> <rejected>
+    // line breaks inside a line are turned into spaces and a bare END is skipped, since either would end the import early
+    public CompletableFuture<BoardResponse> importLines(Iterator<String> lines) {
+        PendingRequest request = new PendingRequest("IMPORT");
+        synchronized (sendLock) {
+            if (closed) {
+                request.future.completeExceptionally(new IOException("Connection closed"));
+                return request.future;
+            }
+            
+            pending.add(request);
+            try {
+                out.write("IMPORT\n");
+                while (lines.hasNext()) {
+                    String line = lines.next().replace('\r', ' ').replace('\n', ' ');
+                    if (line.trim().equals("END")) {
+                        continue;
+                    }
+                    out.write(line);
+                    out.write('\n');
+                }
+                out.write("END\n");
+                out.flush();
+            } catch (IOException e) {
+                shutdown(e);
+            } catch (RuntimeException e) {
+                // the source failed part way, hang up rather than let the server take a partial import as complete
+                shutdown(new IOException("Import source failed: " + e.getMessage(), e));
+            }
+        }
+        return request.future;
+    }
+    
+    // EXPORT - every NOTE and PIN line is passed to the sink as it arrives, nothing is kept
+    // the future completes with just the status line once the export is done
+    public CompletableFuture<BoardResponse> export(Consumer<String> sink) {
+        PendingRequest request = new PendingRequest("EXPORT");
+        request.lineSink = sink;
+        synchronized (sendLock) {
+            if (closed) {
+                request.future.completeExceptionally(new IOException("Connection closed"));
+                return request.future;
+            }
+            
+            pending.add(request);
+            try {
+                out.write("EXPORT\n");
+                out.flush();
+            } catch (IOException e) {
+                shutdown(e);
+            }
+        }
+        return request.future;
+    }
+    
+    // politely tell the server we are leaving, then close once it answers
+    public CompletableFuture<BoardResponse> disconnect() {
+        CompletableFuture<BoardResponse> response = send("DISCONNECT");
+        response.whenComplete((r, e) -> close());
+        return response;
+    }
+    
+    @Override
+    public void close() {
+        shutdown(new IOException("Connection closed"));
+    }
+    
+    // responses with lines after the status line - their OK line ends with the line count
+    private static boolean expectsLines(String command) {
+        return command.startsWith("GET") || command.startsWith("EXPLAIN") || command.equals("STATS");
+    }
+    
+    // how many lines follow a status line: the trailing count of an OK header, nothing for errors
+    private static int lineCount(String statusLine) {
+        if (!statusLine.startsWith("OK ")) {
+            return 0;
+        }
+        String last = statusLine.substring(statusLine.lastIndexOf(' ') + 1);
+        try {
+            return Integer.parseInt(last);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+    
+    // reader thread - match each response to the oldest request still waiting
+    private void readResponses() {
+        IOException failure = null;
+        try {
+            String statusLine;
+            while ((statusLine = in.readLine()) != null) {
+                PendingRequest request = pending.poll();
+                if (request == null) {
+                    // nothing was asked, so there is nobody to give this to
+                    continue;
+                }
+                
+                // a COMPRESS sent by hand still has to switch the reader over before the next response
+                if (request.command.equals("COMPRESS DEFLATE") && statusLine.startsWith("OK COMPRESS DEFLATE")) {
+                    in.enableCompression();
+                }
+                
+                List<String> lines = new ArrayList<>();
+                if (request.lineSink != null) {
+                    // keep reading to END even if the sink fails, or the next response would be lost
+                    RuntimeException sinkError = null;
+                    if (statusLine.startsWith("OK")) {
+                        String line;
+                        while (!(line = readRequiredLine()).equals("END")) {
+                            try {
+                                if (sinkError == null) {
+                                    request.lineSink.accept(line);
+                                }
+                            } catch (RuntimeException e) {
+                                sinkError = e;
+                            }
+                        }
+                    }
+                    if (sinkError != null) {
+                        request.future.completeExceptionally(sinkError);
+                        continue;
+                    }
+                } else if (request.multiLine) {
+                    int count = lineCount(statusLine);
+                    for (int i = 0; i < count; i++) {
+                        lines.add(readRequiredLine());
+                    }
+                }
+                request.future.complete(new BoardResponse(request.command, statusLine, lines));
+            }
+            failure = new EOFException("Server closed the connection");
+        } catch (IOException e) {
+            failure = e;
+        }
+        in.end();
+        shutdown(failure);
+    }
+    
+    // close the socket and fail everything still waiting - only the first call does anything
+    private void shutdown(IOException cause) {
+        synchronized (sendLock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        
+        PendingRequest request;
+        while ((request = pending.poll()) != null) {
+            request.future.completeExceptionally(cause);
+        }
+        
+        Runnable listener = closeListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+}
@@ -0,0 +1,283 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+// local copy of the board, kept current with GET SINCE so that filtering happens on the client
+// and each refresh only downloads what changed since the last one
+public class BoardMirror {
+    private final int noteWidth;
+    private final int noteHeight;
+    
+    // keyed by origin - the server never allows two notes at the same spot
+    private final Map<Long, BoardNote> notes = new LinkedHashMap<>();
+    private final Set<BoardPin> pins = new LinkedHashSet<>();
+    private long nextSequence;
+    
+    // only written by apply, but read by sync without the mirror lock
+    private volatile long version;
+    
+    // guards syncInFlight - never the mirror lock, so starting a sync (from the EDT) does not
+    // wait for a large update that is being applied on the reader thread
+    private final Object syncLock = new Object();
+    private CompletableFuture<Long> syncInFlight;
+    
+    // notes by origin and pins by position, for area lookups
+    private final SpatialGrid<BoardNote> noteGrid;
+    private final SpatialGrid<BoardPin> pinGrid;
+    private volatile BoardMirrorListener listener;
+    
+    public BoardMirror(int noteWidth, int noteHeight) {
+        this.noteWidth = noteWidth;
+        this.noteHeight = noteHeight;
+        this.noteGrid = new SpatialGrid<>(noteWidth, noteHeight);
+        this.pinGrid = new SpatialGrid<>(noteWidth, noteHeight);
+    }
+    
+    public void setListener(BoardMirrorListener listener) {
+        this.listener = listener;
+    }
+    
+    public long getVersion() {
+        return version;
+    }
+    
+    // bring the copy up to date - completes with the version it now matches
+    // a sync that is already running is shared rather than starting a second one, and a new one only
+    // starts once the last has been applied, so the version it asks from is never half written
+    public CompletableFuture<Long> sync(BoardConnection connection) {
+        synchronized (syncLock) {
+            if (syncInFlight != null && !syncInFlight.isDone()) {
+                return syncInFlight;
+            }
+            
+            syncInFlight = connection.send("GET SINCE " + version).thenApply(this::apply);
+            return syncInFlight;
+        }
+    }
+    
+    // apply a DELTA or SNAPSHOT response
+    private synchronized long apply(BoardResponse response) {
+        if (!response.isOk()) {
+            throw new CompletionException(new IOException(response.getStatusLine()));
+        }
+        
+        String[] header = response.getStatusLine().split("\\s+");
+        if (header[1].equals("DELTA")) {
+            boolean understood = true;
+            for (String change : response.getLines()) {
+                understood &= applyChange(change);
+            }
+            // a change we could not replay means the copy is off, so ask for a snapshot next time
+            version = understood ? Long.parseLong(header[3]) : -1;
+        } else {
+            // the server could not give us a delta, start over from its snapshot
+            clearAll();
+            for (String line : response.getLines()) {
+                if (line.startsWith("NOTE ")) {
+                    String[] parts = line.split(" ", 5);
+                    String message = parts[4].substring(0, parts[4].lastIndexOf(" PINNED="));
+                    addNote(new BoardNote(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), parts[3], message));
+                } else if (line.startsWith("PIN ")) {
+                    addSnapshotPin(line);
+                }
+            }
+            version = Long.parseLong(header[2]);
+            BoardMirrorListener l = listener;
+            if (l != null) {
+                l.boardReset();
+            }
+        }
+        return version;
+    }
+    
+    // a snapshot PIN line - "PIN x y" and the origins of the notes it holds, which are the only ones
+    // pinned by it (notes posted under a pin after it went in are not)
+    private void addSnapshotPin(String line) {
+        String[] parts = line.split(" ");
+        BoardPin pin = new BoardPin(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+        if (pins.add(pin)) {
+            pinGrid.add(pin.getX(), pin.getY(), pin);
+        }
+        for (int i = 3; i + 1 < parts.length; i += 2) {
+            BoardNote note = notes.get(key(Integer.parseInt(parts[i]), Integer.parseInt(parts[i + 1])));
+            if (note != null) {
+                note.addPin(pin);
+            }
+        }
+    }
+    
+    // replay one journal line the same way the server applied it, false if it is not one we know
+    private boolean applyChange(String change) {
+        String[] parts = change.split(" ", 5);
+        switch (parts[0]) {
+            case "ADD":
+                addNote(new BoardNote(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), parts[3], parts[4]));
+                break;
+            
+            case "PIN": {
+                BoardPin pin = new BoardPin(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+                if (pins.add(pin)) {
+                    pinGrid.add(pin.getX(), pin.getY(), pin);
+                }
+                for (BoardNote note : notesContaining(pin.getX(), pin.getY())) {
+                    note.addPin(pin);
+                }
+                pinChanged(pin);
+                break;
+            }
+            
+            case "UNPIN": {
+                BoardPin pin = new BoardPin(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+                if (pins.remove(pin)) {
+                    pinGrid.remove(pin.getX(), pin.getY(), pin);
+                }
+                // only notes around the pin can be holding it
+                for (BoardNote note : notesContaining(pin.getX(), pin.getY())) {
+                    note.removePin(pin);
+                }
+                pinChanged(pin);
+                break;
+            }
+            
+            case "REMOVE": {
+                // one note expired or was evicted
+                BoardNote note = notes.get(key(Integer.parseInt(parts[1]), Integer.parseInt(parts[2])));
+                if (note != null) {
+                    removeNote(note);
+                }
+                break;
+            }
+            
+            case "SHAKE": {
+                List<BoardNote> removed = new ArrayList<>();
+                for (BoardNote note : notes.values()) {
+                    if (!note.isPinned()) {
+                        removed.add(note);
+                    }
+                }
+                for (BoardNote note : removed) {
+                    removeNote(note);
+                }
+                break;
+            }
+            
+            case "CLEAR": {
+                clearAll();
+                BoardMirrorListener l = listener;
+                if (l != null) {
+                    l.boardReset();
+                }
+                break;
+            }
+            
+            default:
+                return false;
+        }
+        return true;
+    }
+    
+    private void addNote(BoardNote note) {
+        note.setSequence(nextSequence++);
+        notes.put(key(note.getX(), note.getY()), note);
+        noteGrid.add(note.getX(), note.getY(), note);
+        noteChanged(note);
+    }
+    
+    private void removeNote(BoardNote note) {
+        notes.remove(key(note.getX(), note.getY()));
+        noteGrid.remove(note.getX(), note.getY(), note);
+        noteChanged(note);
+    }
+    
+    private void clearAll() {
+        notes.clear();
+        pins.clear();
+        noteGrid.clear();
+        pinGrid.clear();
+    }
+    
+    private void noteChanged(BoardNote note) {
+        BoardMirrorListener l = listener;
+        if (l != null) {
+            l.regionChanged(note.getX(), note.getY(), noteWidth, noteHeight);
+        }
+    }
+    
+    // a pin changes how every note under it looks
+    private void pinChanged(BoardPin pin) {
+        BoardMirrorListener l = listener;
+        if (l != null) {
+            l.regionChanged(pin.getX() - noteWidth + 1, pin.getY() - noteHeight + 1, 2 * noteWidth - 1, 2 * noteHeight - 1);
+        }
+    }
+    
+    // notes covering a point, found through the grid rather than a scan
+    private List<BoardNote> notesContaining(int px, int py) {
+        List<BoardNote> found = new ArrayList<>();
+        for (BoardNote note : noteGrid.candidates(px - noteWidth + 1, py - noteHeight + 1, px, py)) {
+            if (note.containsPoint(px, py, noteWidth, noteHeight)) {
+                found.add(note);
+            }
+        }
+        found.sort(Comparator.comparingLong(BoardNote::getSequence));
+        return found;
+    }
+    
+    // notes overlapping an area, in posting order
+    public synchronized List<BoardNote> notesTouching(int x, int y, int width, int height) {
+        List<BoardNote> found = new ArrayList<>();
+        for (BoardNote note : noteGrid.candidates(x - noteWidth + 1, y - noteHeight + 1, x + width - 1, y + height - 1)) {
+            if (note.getX() < x + width && note.getX() + noteWidth > x
+                    && note.getY() < y + height && note.getY() + noteHeight > y) {
+                found.add(note);
+            }
+        }
+        found.sort(Comparator.comparingLong(BoardNote::getSequence));
+        return found;
+    }
+    
+    // pins inside an area
+    public synchronized List<BoardPin> pinsIn(int x, int y, int width, int height) {
+        List<BoardPin> found = new ArrayList<>();
+        for (BoardPin pin : pinGrid.candidates(x, y, x + width - 1, y + height - 1)) {
+            if (pin.getX() >= x && pin.getX() < x + width && pin.getY() >= y && pin.getY() < y + height) {
+                found.add(pin);
+            }
+        }
+        return found;
+    }
+    
+    private static long key(int x, int y) {
+        return ((long) x << 32) | (y & 0xffffffffL);
+    }
+    
+    // same filters as GET, run against the local copy
+    public synchronized List<BoardNote> query(String color, Integer containsX, Integer containsY, String refersTo) {
+        // a contains filter only needs the notes around that point
+        boolean point = containsX != null && containsY != null;
+        Iterable<BoardNote> candidates = point ? notesContaining(containsX, containsY) : notes.values();
+        
+        List<BoardNote> matches = new ArrayList<>();
+        for (BoardNote note : candidates) {
+            if (color != null && !note.getColor().equals(color)) {
+                continue;
+            }
+            if (refersTo != null && !note.getMessage().contains(refersTo)) {
+                continue;
+            }
+            matches.add(note);
+        }
+        return matches;
+    }
+    
+    public synchronized List<BoardPin> getPins() {
+        return new ArrayList<>(pins);
+    }
+}
@@ -0,0 +1,8 @@
+// told about changes to a BoardMirror, on whichever thread applied them
+public interface BoardMirrorListener {
+    // an area of the board, in board units, whose contents changed
+    void regionChanged(int x, int y, int width, int height);
+    
+    // anything on the board may have changed
+    void boardReset();
+}
@@ -0,0 +1,67 @@
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+// a note as the client sees it in its local copy of the board
+public class BoardNote {
+    private final int x;
+    private final int y;
+    private final String color;
+    private final String message;
+    private final Set<BoardPin> pins = new LinkedHashSet<>();
+    private long sequence;
+    
+    public BoardNote(int x, int y, String color, String message) {
+        this.x = x;
+        this.y = y;
+        this.color = color;
+        this.message = message;
+    }
+    
+    public int getX() {
+        return x;
+    }
+    
+    public int getY() {
+        return y;
+    }
+    
+    public String getColor() {
+        return color;
+    }
+    
+    public String getMessage() {
+        return message;
+    }
+    
+    // position in posting order, later notes are drawn on top
+    public long getSequence() {
+        return sequence;
+    }
+    
+    void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+    
+    public boolean isPinned() {
+        return !pins.isEmpty();
+    }
+    
+    // same rule as the server - the note covers [x, x + width) by [y, y + height)
+    public boolean containsPoint(int px, int py, int noteWidth, int noteHeight) {
+        return px >= x && px < x + noteWidth &&
+               py >= y && py < y + noteHeight;
+    }
+    
+    void addPin(BoardPin pin) {
+        pins.add(pin);
+    }
+    
+    void removePin(BoardPin pin) {
+        pins.remove(pin);
+    }
+    
+    // the line GET would return for this note
+    public String toProtocolLine() {
+        return "NOTE " + x + " " + y + " " + color + " " + message + " PINNED=" + isPinned();
+    }
+}
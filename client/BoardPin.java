@@ -0,0 +1,33 @@
+import java.util.Objects;
+
+// a pin in the client's local copy of the board
+public class BoardPin {
+    private final int x;
+    private final int y;
+    
+    public BoardPin(int x, int y) {
+        this.x = x;
+        this.y = y;
+    }
+    
+    public int getX() {
+        return x;
+    }
+    
+    public int getY() {
+        return y;
+    }
+    
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        BoardPin pin = (BoardPin) o;
+        return x == pin.x && y == pin.y;
+    }
+    
+    @Override
+    public int hashCode() {
+        return Objects.hash(x, y);
+    }
+}
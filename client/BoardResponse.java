@@ -0,0 +1,55 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// one complete server response - the status line plus any lines that came with it (NOTE, PIN, STAT, ...)
+public class BoardResponse {
+    private final String command;
+    private final String statusLine;
+    private final List<String> lines;
+    
+    public BoardResponse(String command, String statusLine, List<String> lines) {
+        this.command = command;
+        this.statusLine = statusLine;
+        this.lines = Collections.unmodifiableList(new ArrayList<>(lines));
+    }
+    
+    // the command this is a response to
+    public String getCommand() {
+        return command;
+    }
+    
+    public String getStatusLine() {
+        return statusLine;
+    }
+    
+    public List<String> getLines() {
+        return lines;
+    }
+    
+    public boolean isOk() {
+        return statusLine.startsWith("OK");
+    }
+    
+    // the error code of an ERROR response (e.g. OUT_OF_BOUNDS), or null if the command worked
+    public String getErrorCode() {
+        if (!statusLine.startsWith("ERROR ")) {
+            return null;
+        }
+        String[] parts = statusLine.split("\\s+", 3);
+        return parts.length > 1 ? parts[1] : null;
+    }
+    
+    // the response as the server sent it, one line per entry
+    public List<String> getAllLines() {
+        List<String> all = new ArrayList<>(lines.size() + 1);
+        all.add(statusLine);
+        all.addAll(lines);
+        return all;
+    }
+    
+    @Override
+    public String toString() {
+        return String.join("\n", getAllLines());
+    }
+}
@@ -0,0 +1,331 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+// command line bulk import/export of a board's notes and pins
+// the file is streamed one line at a time in both directions, so its size does not matter
+//
+//   java BoardTransfer import <host> <port> <file>
+//   java BoardTransfer export <host> <port> <file>
+//
+// .csv files hold "note,x,y,color,message" and "pin,x,y" rows (message quoted if it has commas or quotes)
+// .ndjson/.jsonl files hold one {"type":"note","x":..,"y":..,"color":"..","message":".."}
+// or {"type":"pin","x":..,"y":..} object per line
+public class BoardTransfer {
+    public static void main(String[] args) {
+        if (args.length != 4 || !(args[0].equals("import") || args[0].equals("export"))) {
+            System.err.println("Usage: java BoardTransfer import|export <host> <port> <file.csv|file.ndjson>");
+            System.exit(1);
+        }
+        
+        String file = args[3];
+        boolean csv;
+        if (file.endsWith(".csv")) {
+            csv = true;
+        } else if (file.endsWith(".ndjson") || file.endsWith(".jsonl")) {
+            csv = false;
+        } else {
+            System.err.println("Error: File must end in .csv, .ndjson or .jsonl");
+            System.exit(1);
+            return;
+        }
+        
+        try (BoardConnection connection = BoardConnection.connect(args[1], Integer.parseInt(args[2]))) {
+            if (args[0].equals("import")) {
+                importFile(connection, file, csv);
+            } else {
+                exportFile(connection, file, csv);
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Error: Invalid port number");
+            System.exit(1);
+        } catch (Exception e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+    
+    private static void importFile(BoardConnection connection, String file, boolean csv) throws Exception {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            ProtocolLines lines = new ProtocolLines(reader, csv);
+            BoardResponse response = connection.importLines(lines).get();
+            System.out.println(response.getStatusLine());
+            if (lines.skipped > 0) {
+                System.out.println(lines.skipped + " lines in the file could not be read and were not sent");
+            }
+        }
+    }
+    
+    private static void exportFile(BoardConnection connection, String file, boolean csv) throws Exception {
+        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            int[] count = new int[1];
+            BoardResponse response = connection.export(line -> {
+                String row = csv ? toCsv(line) : toJson(line);
+                try {
+                    writer.write(row);
+                    writer.newLine();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                count[0]++;
+            }).get();
+            if (!response.isOk()) {
+                throw new IOException(response.getStatusLine());
+            }
+            System.out.println("Exported " + count[0] + " notes and pins to " + file);
+        }
+    }
+    
+    // turns file rows into NOTE/PIN protocol lines as the import reads them
+    private static class ProtocolLines implements Iterator<String> {
+        private final BufferedReader reader;
+        private final boolean csv;
+        private String next;
+        int skipped;
+        
+        ProtocolLines(BufferedReader reader, boolean csv) {
+            this.reader = reader;
+            this.csv = csv;
+        }
+        
+        @Override
+        public boolean hasNext() {
+            try {
+                while (next == null) {
+                    String row = reader.readLine();
+                    if (row == null) {
+                        return false;
+                    }
+                    if (row.trim().isEmpty() || (csv && row.startsWith("type,"))) {
+                        continue;
+                    }
+                    next = csv ? fromCsv(row) : fromJson(row);
+                    if (next == null) {
+                        skipped++;
+                    }
+                }
+                return true;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            String line = next;
+            next = null;
+            return line;
+        }
+    }
+    
+    // protocol line -> CSV row
+    static String toCsv(String line) {
+        String[] parts = line.split(" ", 5);
+        if (parts[0].equals("PIN")) {
+            return "pin," + parts[1] + "," + parts[2];
+        }
+        String message = parts[4];
+        if (message.contains(",") || message.contains("\"")) {
+            message = "\"" + message.replace("\"", "\"\"") + "\"";
+        }
+        return "note," + parts[1] + "," + parts[2] + "," + parts[3] + "," + message;
+    }
+    
+    // CSV row -> protocol line, null if it is not a note or pin row
+    static String fromCsv(String row) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < row.length(); i++) {
+            char c = row.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < row.length() && row.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',' && fields.size() < 4) {
+                // the message is the last field, so later commas belong to it
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        
+        String type = fields.get(0).trim();
+        if (type.equals("note") && fields.size() == 5) {
+            return "NOTE " + fields.get(1).trim() + " " + fields.get(2).trim() + " " + fields.get(3).trim() + " " + fields.get(4);
+        }
+        if (type.equals("pin") && fields.size() == 3) {
+            return "PIN " + fields.get(1).trim() + " " + fields.get(2).trim();
+        }
+        return null;
+    }
+    
+    // protocol line -> NDJSON object
+    static String toJson(String line) {
+        String[] parts = line.split(" ", 5);
+        if (parts[0].equals("PIN")) {
+            return "{\"type\":\"pin\",\"x\":" + parts[1] + ",\"y\":" + parts[2] + "}";
+        }
+        return "{\"type\":\"note\",\"x\":" + parts[1] + ",\"y\":" + parts[2]
+                + ",\"color\":" + jsonString(parts[3]) + ",\"message\":" + jsonString(parts[4]) + "}";
+    }
+    
+    private static String jsonString(String value) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+    
+    // NDJSON object -> protocol line, null if it is not a note or pin object
+    static String fromJson(String row) {
+        Map<String, String> fields;
+        try {
+            fields = parseFlatObject(row.trim());
+        } catch (NumberFormatException e) {
+            fields = null;
+        }
+        if (fields == null) {
+            return null;
+        }
+        String type = fields.get("type");
+        String x = fields.get("x");
+        String y = fields.get("y");
+        if (x == null || y == null) {
+            return null;
+        }
+        if ("note".equals(type) && fields.get("color") != null && fields.get("message") != null) {
+            return "NOTE " + x + " " + y + " " + fields.get("color") + " " + fields.get("message");
+        }
+        if ("pin".equals(type)) {
+            return "PIN " + x + " " + y;
+        }
+        return null;
+    }
+    
+    // just enough JSON for one flat object of string and number values
+    private static Map<String, String> parseFlatObject(String text) {
+        Map<String, String> fields = new HashMap<>();
+        int[] pos = {0};
+        if (!expect(text, pos, '{')) {
+            return null;
+        }
+        skipSpace(text, pos);
+        if (pos[0] < text.length() && text.charAt(pos[0]) == '}') {
+            return fields;
+        }
+        while (true) {
+            skipSpace(text, pos);
+            String key = readString(text, pos);
+            if (key == null || !expect(text, pos, ':')) {
+                return null;
+            }
+            skipSpace(text, pos);
+            String value;
+            if (pos[0] < text.length() && text.charAt(pos[0]) == '"') {
+                value = readString(text, pos);
+            } else {
+                int start = pos[0];
+                while (pos[0] < text.length() && ",} \t".indexOf(text.charAt(pos[0])) < 0) {
+                    pos[0]++;
+                }
+                value = text.substring(start, pos[0]);
+            }
+            if (value == null) {
+                return null;
+            }
+            fields.put(key, value);
+            skipSpace(text, pos);
+            if (pos[0] >= text.length()) {
+                return null;
+            }
+            char c = text.charAt(pos[0]++);
+            if (c == '}') {
+                return fields;
+            }
+            if (c != ',') {
+                return null;
+            }
+        }
+    }
+    
+    private static void skipSpace(String text, int[] pos) {
+        while (pos[0] < text.length() && Character.isWhitespace(text.charAt(pos[0]))) {
+            pos[0]++;
+        }
+    }
+    
+    private static boolean expect(String text, int[] pos, char c) {
+        skipSpace(text, pos);
+        if (pos[0] < text.length() && text.charAt(pos[0]) == c) {
+            pos[0]++;
+            return true;
+        }
+        return false;
+    }
+    
+    private static String readString(String text, int[] pos) {
+        if (pos[0] >= text.length() || text.charAt(pos[0]) != '"') {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        int i = pos[0] + 1;
+        while (i < text.length()) {
+            char c = text.charAt(i++);
+            if (c == '"') {
+                pos[0] = i;
+                return sb.toString();
+            }
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            if (i >= text.length()) {
+                return null;
+            }
+            // protocol lines cannot hold line breaks, so those become spaces
+            char e = text.charAt(i++);
+            switch (e) {
+                case 'n': sb.append(' '); break;
+                case 't': sb.append('\t'); break;
+                case 'r': sb.append(' '); break;
+                case 'b': sb.append('\b'); break;
+                case 'f': sb.append('\f'); break;
+                case 'u':
+                    if (i + 4 > text.length()) {
+                        return null;
+                    }
+                    sb.append((char) Integer.parseInt(text.substring(i, i + 4), 16));
+                    i += 4;
+                    break;
+                default: sb.append(e); break;
+            }
+        }
+        return null;
+    }
+}
@@ -2,13 +2,23 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
-import java.net.*;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 // GUI client for the Bulletin Board System
 public class BulletinBoardClient extends JFrame {
+    // output keeps this many lines, and responses longer than MAX_SHOWN_LINES are cut short
+    private static final int CONSOLE_LINES = 5000;
+    private static final int MAX_SHOWN_LINES = 200;
+    
+    // how often the output view picks up new lines
+    private static final int CONSOLE_FPS = 30;
+    
     // connection components
     private JTextField serverField;
     private JTextField portField;
+    private JCheckBox compressBox;
     private JButton connectButton;
     private JButton disconnectButton;
     private JLabel statusLabel;
@@ -38,15 +48,23 @@ public class BulletinBoardClient extends JFrame {
     private JButton shakeButton;
     private JButton clearButton;
     
-    // output display
-    private JTextArea outputArea;
+    // output display - lines from any thread go into the ring buffer, and a timer on the EDT
+    // copies it into the list in one batch per frame
+    private ConsoleBuffer console = new ConsoleBuffer(CONSOLE_LINES);
+    private ConsoleListModel consoleModel = new ConsoleListModel();
+    private JList<String> outputList;
     private JScrollPane scrollPane;
+    private long consoleShown = -1;
+    
+    // board view, kept up to date by polling GET SINCE while connected
+    private JPanel boardPanel;
+    private BoardCanvas boardCanvas;
+    private Timer refreshTimer;
     
     // network components
-    private Socket socket;
-    private BufferedReader in;
-    private PrintWriter out;
-    private Thread readerThread;
+    private BoardConnection connection;
+    private BoardMirror mirror;
+    private volatile boolean disconnecting;
     
     // board configuration
     private int boardWidth;
@@ -57,7 +75,7 @@ public class BulletinBoardClient extends JFrame {
     
     public BulletinBoardClient() {
         setTitle("Bulletin Board Client");
-        setSize(700, 650);
+        setSize(1150, 650);
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         setLayout(new BorderLayout());
         
@@ -65,6 +83,7 @@ public class BulletinBoardClient extends JFrame {
         createConnectionPanel();
         createCommandPanel();
         createOutputPanel();
+        createBoardPanel();
         
         // initially disable command buttons
         enableCommandButtons(false);
@@ -84,6 +103,10 @@ public class BulletinBoardClient extends JFrame {
         portField = new JTextField("4554", 6);
         panel.add(portField);
         
+        // ask the server to deflate large responses, for boards reached over slow links
+        compressBox = new JCheckBox("Compress");
+        panel.add(compressBox);
+        
         connectButton = new JButton("Connect");
         connectButton.addActionListener(e -> connect());
         panel.add(connectButton);
@@ -184,13 +207,95 @@ public class BulletinBoardClient extends JFrame {
         JPanel panel = new JPanel(new BorderLayout());
         panel.setBorder(BorderFactory.createTitledBorder("Output"));
         
-        outputArea = new JTextArea(15, 60);
-        outputArea.setEditable(false);
-        outputArea.setFont(new Font("Monospaced", Font.PLAIN, 12));
-        scrollPane = new JScrollPane(outputArea);
+        // JList only renders the rows on screen, and a fixed row size keeps it from measuring every line
+        outputList = new JList<>(consoleModel);
+        outputList.setFont(new Font("Monospaced", Font.PLAIN, 12));
+        outputList.setPrototypeCellValue("> GET color=white contains 100 100 refersTo=placeholder text");
+        outputList.setVisibleRowCount(15);
+        scrollPane = new JScrollPane(outputList);
         panel.add(scrollPane, BorderLayout.CENTER);
         
         add(panel, BorderLayout.SOUTH);
+        
+        new Timer(1000 / CONSOLE_FPS, e -> refreshConsole()).start();
+    }
+    
+    // EDT - show whatever arrived since the last frame, following the end if we were already there
+    private void refreshConsole() {
+        long appended = console.getAppendedCount();
+        if (appended == consoleShown) {
+            return;
+        }
+        consoleShown = appended;
+        
+        JScrollBar bar = scrollPane.getVerticalScrollBar();
+        boolean atBottom = bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - 2;
+        consoleModel.setLines(console.snapshot());
+        if (atBottom && consoleModel.getSize() > 0) {
+            outputList.ensureIndexIsVisible(consoleModel.getSize() - 1);
+        }
+    }
+    
+    // list model over one snapshot of the console
+    private static class ConsoleListModel extends AbstractListModel<String> {
+        private static final long serialVersionUID = 1L;
+        
+        private String[] lines = new String[0];
+        
+        void setLines(String[] newLines) {
+            int oldSize = lines.length;
+            lines = newLines;
+            if (oldSize > newLines.length) {
+                fireIntervalRemoved(this, newLines.length, oldSize - 1);
+            }
+            if (newLines.length > oldSize) {
+                fireIntervalAdded(this, oldSize, newLines.length - 1);
+            }
+            if (Math.min(oldSize, newLines.length) > 0) {
+                fireContentsChanged(this, 0, Math.min(oldSize, newLines.length) - 1);
+            }
+        }
+        
+        @Override
+        public int getSize() {
+            return lines.length;
+        }
+        
+        @Override
+        public String getElementAt(int index) {
+            return lines[index];
+        }
+    }
+    
+    private void createBoardPanel() {
+        boardPanel = new JPanel(new BorderLayout());
+        boardPanel.setBorder(BorderFactory.createTitledBorder("Board"));
+        boardPanel.setPreferredSize(new Dimension(440, 300));
+        add(boardPanel, BorderLayout.EAST);
+        
+        refreshTimer = new Timer(250, e -> {
+            if (connection != null && !connection.isClosed()) {
+                mirror.sync(connection);
+            }
+        });
+    }
+    
+    private void showBoard() {
+        hideBoard();
+        boardCanvas = new BoardCanvas(mirror, boardWidth, boardHeight, noteWidth, noteHeight);
+        boardPanel.add(boardCanvas, BorderLayout.CENTER);
+        boardPanel.revalidate();
+        refreshTimer.start();
+    }
+    
+    private void hideBoard() {
+        refreshTimer.stop();
+        if (boardCanvas != null) {
+            boardCanvas.dispose();
+            boardPanel.remove(boardCanvas);
+            boardPanel.repaint();
+            boardCanvas = null;
+        }
     }
     
     private void connect() {
@@ -204,20 +309,45 @@ public class BulletinBoardClient extends JFrame {
         
         try {
             int port = Integer.parseInt(portStr);
-            socket = new Socket(server, port);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
+            connection = BoardConnection.connect(server, port, compressBox.isSelected());
+            disconnecting = false;
             
             appendOutput("Connected to " + server + ":" + port + "\n");
+            if (compressBox.isSelected()) {
+                appendOutput(connection.isCompressed() ? "Large responses will be compressed\n"
+                        : "Server does not compress, responses will come as they are\n");
+            }
             statusLabel.setText("Status: Connected");
             statusLabel.setForeground(Color.GREEN);
             
             connectButton.setEnabled(false);
+            compressBox.setEnabled(false);
             disconnectButton.setEnabled(true);
             
-            // start reader thread
-            readerThread = new Thread(() -> readServerMessages());
-            readerThread.start();
+            // the handshake has already been read by the connection
+            boardWidth = connection.getBoardWidth();
+            boardHeight = connection.getBoardHeight();
+            noteWidth = connection.getNoteWidth();
+            noteHeight = connection.getNoteHeight();
+            colors = connection.getColors().toArray(new String[0]);
+            mirror = new BoardMirror(noteWidth, noteHeight);
+            appendOutput("< OK HANDSHAKE\n");
+            appendOutput("< BOARD " + boardWidth + " " + boardHeight + "\n");
+            appendOutput("< NOTE " + noteWidth + " " + noteHeight + "\n");
+            appendOutput("< COLOURS " + colors.length + " " + String.join(" ", colors) + "\n");
+            
+            // update color dropdowns
+            postColorCombo.removeAllItems();
+            getColorCombo.removeAllItems();
+            getColorCombo.addItem("(any)");
+            for (String color : colors) {
+                postColorCombo.addItem(color);
+                getColorCombo.addItem(color);
+            }
+            enableCommandButtons(true);
+            showBoard();
+            
+            connection.setCloseListener(() -> SwingUtilities.invokeLater(() -> connectionClosed()));
             
         } catch (NumberFormatException e) {
             appendOutput("Error: Invalid port number\n");
@@ -227,77 +357,34 @@ public class BulletinBoardClient extends JFrame {
     }
     
     private void disconnect() {
-        try {
-            if (out != null) {
-                out.println("DISCONNECT");
-            }
-            if (socket != null && !socket.isClosed()) {
-                socket.close();
-            }
-            appendOutput("Disconnected from server\n");
-            statusLabel.setText("Status: Disconnected");
-            statusLabel.setForeground(Color.RED);
-            
-            connectButton.setEnabled(true);
-            disconnectButton.setEnabled(false);
-            enableCommandButtons(false);
-            
-        } catch (IOException e) {
-            appendOutput("Error disconnecting: " + e.getMessage() + "\n");
+        if (connection != null) {
+            disconnecting = true;
+            connection.disconnect();
         }
+        hideBoard();
+        appendOutput("Disconnected from server\n");
+        statusLabel.setText("Status: Disconnected");
+        statusLabel.setForeground(Color.RED);
+        
+        connectButton.setEnabled(true);
+        compressBox.setEnabled(true);
+        disconnectButton.setEnabled(false);
+        enableCommandButtons(false);
     }
     
-    private void readServerMessages() {
-        try {
-            String line;
-            boolean handshakeComplete = false;
-            
-            while ((line = in.readLine()) != null) {
-                final String message = line;
-                SwingUtilities.invokeLater(() -> appendOutput("< " + message + "\n"));
-                
-                // parse handshake
-                if (!handshakeComplete && message.startsWith("BOARD")) {
-                    String[] parts = message.split("\\s+");
-                    boardWidth = Integer.parseInt(parts[1]);
-                    boardHeight = Integer.parseInt(parts[2]);
-                } else if (!handshakeComplete && message.startsWith("NOTE")) {
-                    String[] parts = message.split("\\s+");
-                    noteWidth = Integer.parseInt(parts[1]);
-                    noteHeight = Integer.parseInt(parts[2]);
-                } else if (!handshakeComplete && message.startsWith("COLOURS")) {
-                    String[] parts = message.split("\\s+");
-                    int colorCount = Integer.parseInt(parts[1]);
-                    colors = new String[colorCount];
-                    for (int i = 0; i < colorCount; i++) {
-                        colors[i] = parts[i + 2];
-                    }
-                    
-                    // update color dropdowns
-                    SwingUtilities.invokeLater(() -> {
-                        postColorCombo.removeAllItems();
-                        getColorCombo.removeAllItems();
-                        getColorCombo.addItem("(any)");
-                        for (String color : colors) {
-                            postColorCombo.addItem(color);
-                            getColorCombo.addItem(color);
-                        }
-                        enableCommandButtons(true);
-                    });
-                    
-                    handshakeComplete = true;
-                }
-            }
-        } catch (IOException e) {
-            SwingUtilities.invokeLater(() -> {
-                appendOutput("Connection lost\n");
-                statusLabel.setText("Status: Disconnected");
-                statusLabel.setForeground(Color.RED);
-                connectButton.setEnabled(true);
-                disconnectButton.setEnabled(false);
-                enableCommandButtons(false);
-            });
+    // the server went away without us asking
+    private void connectionClosed() {
+        if (disconnecting) {
+            return;
         }
+        hideBoard();
+        appendOutput("Connection lost\n");
+        statusLabel.setText("Status: Disconnected");
+        statusLabel.setForeground(Color.RED);
+        connectButton.setEnabled(true);
+        compressBox.setEnabled(true);
+        disconnectButton.setEnabled(false);
+        enableCommandButtons(false);
     }
     
     private void postNote() {
@@ -331,8 +418,10 @@ public class BulletinBoardClient extends JFrame {
                 return;
             }
             
-            String command = "POST " + x + " " + y + " " + color + " " + message;
-            sendCommand(command);
+            if (!checkConnected()) {
+                return;
+            }
+            showResponse(connection.post(x, y, color, message));
             
         } catch (NumberFormatException e) {
             appendOutput("Error: Coordinates must be integers\n");
@@ -340,39 +429,69 @@ public class BulletinBoardClient extends JFrame {
     }
     
     private void getNotes() {
-        StringBuilder command = new StringBuilder("GET");
-        
-        // add color filter
+        // color filter
         String color = (String) getColorCombo.getSelectedItem();
-        if (color != null && !color.equals("(any)")) {
-            command.append(" color=").append(color);
+        if (color != null && color.equals("(any)")) {
+            color = null;
         }
         
-        // add contains filter
+        // contains filter
+        Integer x = null;
+        Integer y = null;
         String xStr = getXField.getText().trim();
         String yStr = getYField.getText().trim();
         if (!xStr.isEmpty() && !yStr.isEmpty()) {
             try {
-                int x = Integer.parseInt(xStr);
-                int y = Integer.parseInt(yStr);
-                command.append(" contains=").append(x).append(" ").append(y);
+                x = Integer.parseInt(xStr);
+                y = Integer.parseInt(yStr);
             } catch (NumberFormatException e) {
                 appendOutput("Error: Contains coordinates must be integers\n");
                 return;
             }
         }
         
-        // add refersTo filter
+        // refersTo filter
         String refersTo = getRefersToField.getText().trim();
-        if (!refersTo.isEmpty()) {
-            command.append(" refersTo=").append(refersTo);
+        if (refersTo.isEmpty()) {
+            refersTo = null;
+        }
+        
+        if (!checkConnected()) {
+            return;
         }
         
-        sendCommand(command.toString());
+        // catch the local copy up with the server, then filter it here
+        final String colorFilter = color;
+        final Integer containsX = x;
+        final Integer containsY = y;
+        final String refersToFilter = refersTo;
+        mirror.sync(connection).whenComplete((version, error) -> {
+            if (error != null) {
+                appendOutput("Error: " + error.getMessage() + "\n");
+                return;
+            }
+            List<BoardNote> matches = mirror.query(colorFilter, containsX, containsY, refersToFilter);
+            // only the lines that actually get shown are built
+            List<String> lines = new AbstractList<String>() {
+                @Override
+                public String get(int index) {
+                    return matches.get(index).toProtocolLine();
+                }
+                
+                @Override
+                public int size() {
+                    return matches.size();
+                }
+            };
+            showLines("GET (local copy at version " + version + ")", "OK " + matches.size(), lines);
+        });
     }
     
     private void getPins() {
-        sendCommand("GET PINS");
+        if (!checkConnected()) {
+            return;
+        }
+        showResponse(connection.getPins());
     }
     
     private void addPin() {
@@ -393,7 +512,10 @@ public class BulletinBoardClient extends JFrame {
                 return;
             }
             
-            sendCommand("PIN " + x + " " + y);
+            if (!checkConnected()) {
+                return;
+            }
+            showResponse(connection.pin(x, y));
             
         } catch (NumberFormatException e) {
             appendOutput("Error: Coordinates must be integers\n");
@@ -418,7 +540,10 @@ public class BulletinBoardClient extends JFrame {
                 return;
             }
             
-            sendCommand("UNPIN " + x + " " + y);
+            if (!checkConnected()) {
+                return;
+            }
+            showResponse(connection.unpin(x, y));
             
         } catch (NumberFormatException e) {
             appendOutput("Error: Coordinates must be integers\n");
@@ -426,30 +551,58 @@ public class BulletinBoardClient extends JFrame {
     }
     
     private void shake() {
-        sendCommand("SHAKE");
+        if (!checkConnected()) {
+            return;
+        }
+        showResponse(connection.shake());
     }
     
     private void clear() {
-        sendCommand("CLEAR");
+        if (!checkConnected()) {
+            return;
+        }
+        showResponse(connection.clear());
     }
     
-    private void sendCommand(String command) {
-        if (out == null) {
+    private boolean checkConnected() {
+        if (connection == null || connection.isClosed()) {
             appendOutput("Error: Not connected to server\n");
-            return;
+            return false;
         }
-        
-        appendOutput("> " + command + "\n");
-        out.println(command);
+        return true;
     }
     
-    private void appendOutput(String text) {
-        SwingUtilities.invokeLater(() -> {
-            outputArea.append(text);
-            outputArea.setCaretPosition(outputArea.getDocument().getLength());
+    // print a command and its response together once the response arrives
+    private void showResponse(CompletableFuture<BoardResponse> pending) {
+        pending.whenComplete((response, error) -> {
+            if (error != null) {
+                appendOutput("Error: " + error.getMessage() + "\n");
+                return;
+            }
+            showLines(response.getCommand(), response.getStatusLine(), response.getLines());
         });
     }
     
+    // print a command and its response, cutting long responses short
+    private void showLines(String command, String statusLine, List<String> lines) {
+        StringBuilder text = new StringBuilder();
+        text.append("> ").append(command).append("\n");
+        text.append("< ").append(statusLine).append("\n");
+        int shown = Math.min(lines.size(), MAX_SHOWN_LINES);
+        for (int i = 0; i < shown; i++) {
+            text.append("< ").append(lines.get(i)).append("\n");
+        }
+        if (lines.size() > shown) {
+            text.append("< ... ").append(lines.size() - shown).append(" more lines not shown\n");
+        }
+        appendOutput(text.toString());
+    }
+    
+    // safe from any thread - the line shows up on the next console frame
+    private void appendOutput(String text) {
+        console.appendText(text);
+    }
+    
     private void enableCommandButtons(boolean enabled) {
         postButton.setEnabled(enabled);
         getNotesButton.setEnabled(enabled);
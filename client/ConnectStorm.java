@@ -0,0 +1,107 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// connect-storm benchmark - many clients connecting at once, like everyone reconnecting after a deploy
+// each client connects, waits for the handshake, sends DISCONNECT and waits for the reply
+//
+//   java ConnectStorm <host> <port> [clients] [threads] [timeout_ms]
+//
+// run it against servers started with different --accept-backlog / --acceptors to compare
+public class ConnectStorm {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: java ConnectStorm <host> <port> [clients] [threads] [timeout_ms]");
+            System.exit(1);
+        }
+        String host = args[0];
+        int port = Integer.parseInt(args[1]);
+        int clients = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : 200;
+        int timeoutMs = args.length > 4 ? Integer.parseInt(args[4]) : 5000;
+        
+        long[] latencies = new long[clients];
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        AtomicInteger refused = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                int i;
+                while ((i = next.getAndIncrement()) < clients) {
+                    long began = System.nanoTime();
+                    try {
+                        if (connectOnce(host, port, timeoutMs)) {
+                            latencies[i] = System.nanoTime() - began;
+                            continue;
+                        }
+                        refused.incrementAndGet();
+                    } catch (IOException e) {
+                        failed.incrementAndGet();
+                    }
+                    latencies[i] = -1;
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        
+        long began = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        double seconds = (System.nanoTime() - began) / 1e9;
+        
+        long[] ok = Arrays.stream(latencies).filter(l -> l >= 0).sorted().toArray();
+        System.out.printf("clients %d, threads %d: %d ok, %d busy, %d failed in %.2fs = %.0f connections/s%n",
+                clients, threads, ok.length, refused.get(), failed.get(), seconds, ok.length / seconds);
+        if (ok.length > 0) {
+            System.out.printf("handshake + disconnect ms: p50 %.1f  p90 %.1f  p99 %.1f  max %.1f%n",
+                    percentile(ok, 50), percentile(ok, 90), percentile(ok, 99), ok[ok.length - 1] / 1e6);
+        }
+    }
+    
+    // one full connection, false if the server said it was busy
+    private static boolean connectOnce(String host, int port, int timeoutMs) throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(host, port), timeoutMs);
+            socket.setSoTimeout(timeoutMs);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            String first = in.readLine();
+            if (first == null || !first.equals("OK HANDSHAKE")) {
+                return false;
+            }
+            // board, note size and colours
+            for (int i = 0; i < 3; i++) {
+                in.readLine();
+            }
+            
+            OutputStream out = socket.getOutputStream();
+            out.write("DISCONNECT\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            String reply = in.readLine();
+            if (reply == null) {
+                throw new EOFException("Connection closed before DISCONNECT was answered");
+            }
+            return true;
+        }
+    }
+    
+    private static double percentile(long[] sorted, int p) {
+        int index = Math.min(sorted.length - 1, (int) Math.ceil(p / 100.0 * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+}
@@ -0,0 +1,49 @@
+// fixed-size ring of output lines - any thread can add, the oldest lines fall off when it is full
+public class ConsoleBuffer {
+    private final String[] lines;
+    private int start;
+    private int size;
+    private long appended;
+    
+    public ConsoleBuffer(int capacity) {
+        this.lines = new String[capacity];
+    }
+    
+    public synchronized void append(String line) {
+        if (size == lines.length) {
+            lines[start] = line;
+            start = (start + 1) % lines.length;
+        } else {
+            lines[(start + size) % lines.length] = line;
+            size++;
+        }
+        appended++;
+    }
+    
+    // add every line of a block of text, ignoring the final line break
+    public synchronized void appendText(String text) {
+        int from = 0;
+        int newline;
+        while ((newline = text.indexOf('\n', from)) >= 0) {
+            append(text.substring(from, newline));
+            from = newline + 1;
+        }
+        if (from < text.length()) {
+            append(text.substring(from));
+        }
+    }
+    
+    // total lines ever added, so a reader can tell whether anything changed
+    public synchronized long getAppendedCount() {
+        return appended;
+    }
+    
+    // the lines currently held, oldest first
+    public synchronized String[] snapshot() {
+        String[] copy = new String[size];
+        int firstPart = Math.min(size, lines.length - start);
+        System.arraycopy(lines, start, copy, 0, firstPart);
+        System.arraycopy(lines, 0, copy, firstPart, size - firstPart);
+        return copy;
+    }
+}
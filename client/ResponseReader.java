@@ -0,0 +1,168 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// reads response lines from the server, undoing compression once COMPRESS DEFLATE has been accepted
+// a compressed block arrives as a "DEFLATE <length> <compressed length>" line and that many bytes, and
+// holds whole lines exactly as they would have been sent, so callers only ever see the lines.
+// The inflater and buffers last as long as the connection - nothing is made per block.
+public class ResponseReader {
+    private static final String FRAME = "DEFLATE ";
+    
+    private final InputStream in;
+    private Inflater inflater;
+    
+    // bytes read from the socket but not used yet
+    private final byte[] buffer = new byte[64 * 1024];
+    private int bufferPos;
+    private int bufferEnd;
+    
+    // the block being read from, inflated, and the compressed bytes it came from
+    private byte[] block = new byte[0];
+    private int blockPos;
+    private int blockEnd;
+    private byte[] compressed = new byte[0];
+    
+    // the line being put together from the socket
+    private byte[] line = new byte[256];
+    
+    public ResponseReader(InputStream in) {
+        this.in = in;
+    }
+    
+    // from now on DEFLATE lines start compressed blocks
+    public void enableCompression() {
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+    }
+    
+    public boolean isCompressionEnabled() {
+        return inflater != null;
+    }
+    
+    // the next line without its line break, null once the server has closed the connection
+    public String readLine() throws IOException {
+        while (true) {
+            if (blockPos < blockEnd) {
+                return blockLine();
+            }
+            String next = socketLine();
+            if (next == null || inflater == null || !next.startsWith(FRAME)) {
+                return next;
+            }
+            readBlock(next);
+        }
+    }
+    
+    // free the inflater's native memory - only the thread reading may call this
+    public void end() {
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+    }
+    
+    private String blockLine() {
+        int start = blockPos;
+        int end = start;
+        while (end < blockEnd && block[end] != '\n') {
+            end++;
+        }
+        blockPos = end < blockEnd ? end + 1 : end;
+        return decode(block, start, end);
+    }
+    
+    private String socketLine() throws IOException {
+        int length = 0;
+        while (true) {
+            if (bufferPos == bufferEnd && !fill()) {
+                return length == 0 ? null : decode(line, 0, length);
+            }
+            byte b = buffer[bufferPos++];
+            if (b == '\n') {
+                return decode(line, 0, length);
+            }
+            if (length == line.length) {
+                line = Arrays.copyOf(line, line.length * 2);
+            }
+            line[length++] = b;
+        }
+    }
+    
+    // drop a trailing carriage return, as BufferedReader does
+    private static String decode(byte[] bytes, int start, int end) {
+        if (end > start && bytes[end - 1] == '\r') {
+            end--;
+        }
+        return new String(bytes, start, end - start, StandardCharsets.UTF_8);
+    }
+    
+    private boolean fill() throws IOException {
+        int n = in.read(buffer);
+        if (n <= 0) {
+            return false;
+        }
+        bufferPos = 0;
+        bufferEnd = n;
+        return true;
+    }
+    
+    // read and inflate the block a DEFLATE line announces
+    private void readBlock(String header) throws IOException {
+        String[] parts = header.split(" ");
+        int length;
+        int compressedLength;
+        try {
+            length = Integer.parseInt(parts[1]);
+            compressedLength = Integer.parseInt(parts[2]);
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed compressed block: " + header);
+        }
+        if (length < 0 || compressedLength < 0) {
+            throw new IOException("Malformed compressed block: " + header);
+        }
+        
+        if (compressed.length < compressedLength) {
+            compressed = new byte[compressedLength];
+        }
+        int read = 0;
+        while (read < compressedLength) {
+            if (bufferPos == bufferEnd && !fill()) {
+                throw new EOFException("Server closed the connection inside a compressed block");
+            }
+            int n = Math.min(compressedLength - read, bufferEnd - bufferPos);
+            System.arraycopy(buffer, bufferPos, compressed, read, n);
+            bufferPos += n;
+            read += n;
+        }
+        
+        // one byte of room to spare, so a block that inflates to more than it claims is caught
+        if (block.length <= length) {
+            block = new byte[length + 1];
+        }
+        inflater.reset();
+        inflater.setInput(compressed, 0, compressedLength);
+        int inflated = 0;
+        try {
+            while (inflated <= length && !inflater.finished()) {
+                int n = inflater.inflate(block, inflated, length + 1 - inflated);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed block: " + e.getMessage());
+        }
+        if (inflated != length || !inflater.finished()) {
+            throw new IOException("Corrupt compressed block: expected " + length + " bytes, got " + inflated);
+        }
+        blockPos = 0;
+        blockEnd = length;
+    }
+}
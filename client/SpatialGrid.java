@@ -0,0 +1,71 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// buckets items by the grid cell their point falls in, so area lookups only visit nearby cells
+public class SpatialGrid<T> {
+    private final int cellWidth;
+    private final int cellHeight;
+    private final Map<Long, List<T>> cells = new HashMap<>();
+    
+    public SpatialGrid(int cellWidth, int cellHeight) {
+        this.cellWidth = Math.max(1, cellWidth);
+        this.cellHeight = Math.max(1, cellHeight);
+    }
+    
+    private static long cellKey(int cx, int cy) {
+        return ((long) cx << 32) | (cy & 0xffffffffL);
+    }
+    
+    public void add(int x, int y, T item) {
+        cells.computeIfAbsent(cellKey(Math.floorDiv(x, cellWidth), Math.floorDiv(y, cellHeight)),
+                k -> new ArrayList<>()).add(item);
+    }
+    
+    public void remove(int x, int y, T item) {
+        long key = cellKey(Math.floorDiv(x, cellWidth), Math.floorDiv(y, cellHeight));
+        List<T> bucket = cells.get(key);
+        if (bucket != null) {
+            bucket.remove(item);
+            if (bucket.isEmpty()) {
+                cells.remove(key);
+            }
+        }
+    }
+    
+    public void clear() {
+        cells.clear();
+    }
+    
+    // every item whose point is in [x1, x2] by [y1, y2] (plus some neighbours from the edge cells)
+    public List<T> candidates(int x1, int y1, int x2, int y2) {
+        List<T> found = new ArrayList<>();
+        int cx1 = Math.floorDiv(x1, cellWidth);
+        int cx2 = Math.floorDiv(x2, cellWidth);
+        int cy1 = Math.floorDiv(y1, cellHeight);
+        int cy2 = Math.floorDiv(y2, cellHeight);
+        
+        // a huge area is cheaper to answer by walking the buckets we have
+        if ((long) (cx2 - cx1 + 1) * (cy2 - cy1 + 1) > cells.size()) {
+            for (Map.Entry<Long, List<T>> cell : cells.entrySet()) {
+                int cx = (int) (cell.getKey() >> 32);
+                int cy = (int) (long) cell.getKey();
+                if (cx >= cx1 && cx <= cx2 && cy >= cy1 && cy <= cy2) {
+                    found.addAll(cell.getValue());
+                }
+            }
+            return found;
+        }
+        
+        for (int cx = cx1; cx <= cx2; cx++) {
+            for (int cy = cy1; cy <= cy2; cy++) {
+                List<T> bucket = cells.get(cellKey(cx, cy));
+                if (bucket != null) {
+                    found.addAll(bucket);
+                }
+            }
+        }
+        return found;
+    }
+}
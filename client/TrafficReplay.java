@@ -0,0 +1,320 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+// replays traffic recorded by a server started with --capture-dir against another server,
+// and checks every response against the one the original clients got
+//
+//   java TrafficReplay <capture_dir> <host> <port> [speed]
+//
+// speed is 1 for the original pacing, a factor such as 10 to go that many times faster, or max
+// for no waiting at all. commands from every connection are sent in the order they ran on the board
+// and each one waits for its response before the next is sent, so the replay is deterministic even
+// where the original clients raced each other - start the target as a fresh BBoard with the same
+// arguments as the captured one, rate limits included (the captures say which ones were set).
+// STATS responses depend on the server's history and are not compared.
+public class TrafficReplay {
+    private static final long RESPONSE_TIMEOUT_SECONDS = 30;
+    private static final int SHOWN_MISMATCHES = 5;
+    
+    // one command from a capture and the response the original client got for it
+    private static class Step {
+        final Session session;
+        final long at;
+        final long order;
+        final String command;
+        final List<String> importLines;
+        List<String> expected;
+        
+        Step(Session session, long at, long order, String command, List<String> importLines) {
+            this.session = session;
+            this.at = at;
+            this.order = order;
+            this.command = command;
+            this.importLines = importLines;
+        }
+    }
+    
+    // one captured connection
+    private static class Session {
+        final String file;
+        final List<Step> steps = new ArrayList<>();
+        String rateLimits = "";
+        BoardConnection connection;
+        boolean failed;
+        
+        Session(String file) {
+            this.file = file;
+        }
+    }
+    
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: java TrafficReplay <capture_dir> <host> <port> [speed: 1 | factor | max]");
+            System.exit(1);
+        }
+        File dir = new File(args[0]);
+        String host = args[1];
+        int port = Integer.parseInt(args[2]);
+        String speedArg = args.length > 3 ? args[3] : "1";
+        double speed = speedArg.equals("max") ? 0 : Double.parseDouble(speedArg);
+        
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".bbcap"));
+        if (files == null || files.length == 0) {
+            System.err.println("Error: No .bbcap files in " + dir);
+            System.exit(1);
+        }
+        Arrays.sort(files);
+        
+        // every command from every connection, in the order the server ran them
+        List<Session> sessions = new ArrayList<>();
+        List<Step> steps = new ArrayList<>();
+        TreeSet<String> rateLimits = new TreeSet<>();
+        for (File file : files) {
+            Session session = readCapture(file);
+            sessions.add(session);
+            steps.addAll(session.steps);
+            if (!session.rateLimits.isEmpty()) {
+                rateLimits.add(session.rateLimits);
+            }
+        }
+        steps.sort(Comparator.comparingLong(s -> s.order));
+        for (String options : rateLimits) {
+            System.out.println("Captured with " + options + " - start the target with the same options, "
+                    + "or RATE_LIMITED answers will not match");
+        }
+        if (steps.isEmpty()) {
+            System.out.println("Nothing to replay");
+            return;
+        }
+        
+        int matched = 0;
+        int mismatched = 0;
+        int unchecked = 0;
+        int failed = 0;
+        Map<String, List<Long>> latencies = new TreeMap<>();
+        long firstAt = steps.get(0).at;
+        long began = System.nanoTime();
+        
+        for (Step step : steps) {
+            Session session = step.session;
+            if (session.failed) {
+                failed++;
+                continue;
+            }
+            if (speed > 0) {
+                long due = began + (long) ((step.at - firstAt) * 1000 / speed);
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+            }
+            
+            long sent = System.nanoTime();
+            List<String> actual;
+            try {
+                if (session.connection == null) {
+                    session.connection = BoardConnection.connect(host, port);
+                }
+                actual = run(session.connection, step);
+            } catch (Exception e) {
+                System.err.println(session.file + ": " + step.command + " failed - " + e.getMessage());
+                session.failed = true;
+                failed++;
+                continue;
+            }
+            latencies.computeIfAbsent(commandName(step.command), k -> new ArrayList<>()).add(System.nanoTime() - sent);
+            
+            if (step.expected == null || step.command.equals("STATS")) {
+                unchecked++;
+            } else if (actual.equals(step.expected)) {
+                matched++;
+            } else {
+                if (mismatched < SHOWN_MISMATCHES) {
+                    System.out.println("MISMATCH " + session.file + ": " + step.command);
+                    System.out.println("  expected: " + preview(step.expected));
+                    System.out.println("  actual:   " + preview(actual));
+                }
+                mismatched++;
+            }
+        }
+        double seconds = (System.nanoTime() - began) / 1e9;
+        
+        // connections that never sent DISCONNECT
+        for (Session session : sessions) {
+            if (session.connection != null) {
+                session.connection.close();
+            }
+        }
+        
+        System.out.printf("%d connections, %d commands in %.2fs (captured over %.2fs) = %.0f commands/s%n",
+                files.length, steps.size(), seconds, (steps.get(steps.size() - 1).at - firstAt) / 1e6,
+                steps.size() / seconds);
+        System.out.printf("%d matched, %d mismatched, %d not compared, %d failed%n", matched, mismatched, unchecked, failed);
+        for (Map.Entry<String, List<Long>> entry : latencies.entrySet()) {
+            long[] sorted = entry.getValue().stream().mapToLong(Long::longValue).sorted().toArray();
+            System.out.printf("  %-10s %7d  p50 %.2f ms  p99 %.2f ms  max %.2f ms%n", entry.getKey(), sorted.length,
+                    percentile(sorted, 50), percentile(sorted, 99), sorted[sorted.length - 1] / 1e6);
+        }
+        if (mismatched > 0 || failed > 0) {
+            System.exit(2);
+        }
+    }
+    
+    // send one command and wait for its response, as the lines the server sent
+    private static List<String> run(BoardConnection connection, Step step) throws Exception {
+        if (step.command.equals("IMPORT")) {
+            return connection.importLines(step.importLines.iterator())
+                    .get(RESPONSE_TIMEOUT_SECONDS, TimeUnit.SECONDS).getAllLines();
+        }
+        if (step.command.equals("EXPORT")) {
+            List<String> lines = new ArrayList<>();
+            BoardResponse status = connection.export(lines::add).get(RESPONSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            lines.add(0, status.getStatusLine());
+            if (status.isOk()) {
+                lines.add("END");
+            }
+            return lines;
+        }
+        if (step.command.equals("DISCONNECT")) {
+            return connection.disconnect().get(RESPONSE_TIMEOUT_SECONDS, TimeUnit.SECONDS).getAllLines();
+        }
+        return connection.send(step.command).get(RESPONSE_TIMEOUT_SECONDS, TimeUnit.SECONDS).getAllLines();
+    }
+    
+    // read one capture file - see TrafficCapture on the server for the format
+    private static Session readCapture(File file) throws IOException {
+        Session session = new Session(file.getName());
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            byte[] magic = new byte[6];
+            in.readFully(magic);
+            String format = new String(magic, StandardCharsets.US_ASCII);
+            if (!format.equals("BBCAP1") && !format.equals("BBCAP2")) {
+                throw new IOException(file + " is not a capture");
+            }
+            // the first format has no order stamps, its commands are ordered by time
+            boolean stamped = format.equals("BBCAP2");
+            long startMicros = in.readLong();
+            in.readUTF();
+            if (stamped) {
+                session.rateLimits = in.readUTF();
+            }
+            
+            ByteArrayOutputStream responses = new ByteArrayOutputStream();
+            List<String> importLines = null;
+            int type;
+            while ((type = in.read()) != -1) {
+                long at;
+                long order;
+                byte[] bytes;
+                try {
+                    at = startMicros + readVarLong(in);
+                    order = stamped && type == 'C' ? readVarLong(in) : at;
+                    bytes = new byte[(int) readVarLong(in)];
+                    in.readFully(bytes);
+                } catch (EOFException e) {
+                    // the server stopped part way through a record
+                    break;
+                }
+                if (type == 'R') {
+                    responses.write(bytes);
+                    continue;
+                }
+                
+                // a command line, or a line of the IMPORT before it - an import is placed where its END
+                // was stamped, which is when the server applied it
+                String line = new String(bytes, StandardCharsets.UTF_8).trim();
+                if (importLines != null) {
+                    if (line.equals("END")) {
+                        session.steps.add(new Step(session, at, order, "IMPORT", importLines));
+                        importLines = null;
+                    } else if (!line.isEmpty()) {
+                        importLines.add(line);
+                    }
+                } else if (line.equals("IMPORT")) {
+                    importLines = new ArrayList<>();
+                } else if (!line.isEmpty()) {
+                    session.steps.add(new Step(session, at, order, line, null));
+                }
+            }
+            
+            // hand the responses out in order - clients may pipeline, so they are split up by how the
+            // protocol frames them rather than by when they were written
+            String text = new String(responses.toByteArray(), StandardCharsets.UTF_8);
+            List<String> lines = text.isEmpty() ? Collections.emptyList() : Arrays.asList(text.split("\n", -1));
+            int next = Math.min(4, lines.size());
+            for (Step step : session.steps) {
+                int end = responseEnd(step.command, lines, next);
+                if (end < 0) {
+                    break;
+                }
+                step.expected = new ArrayList<>(lines.subList(next, end));
+                next = end;
+            }
+        }
+        return session;
+    }
+    
+    // index just past the response starting at lines[start], -1 if the capture ends before it does
+    private static int responseEnd(String command, List<String> lines, int start) {
+        // the text ends with a line break, which leaves one empty entry at the end
+        int available = lines.size() - 1;
+        if (start >= available) {
+            return -1;
+        }
+        String status = lines.get(start);
+        if (command.equals("EXPORT") && status.startsWith("OK")) {
+            for (int i = start + 1; i < available; i++) {
+                if (lines.get(i).equals("END")) {
+                    return i + 1;
+                }
+            }
+            return -1;
+        }
+        int end = start + 1;
+        boolean multiLine = command.startsWith("GET") || command.startsWith("EXPLAIN") || command.equals("STATS");
+        if (multiLine && status.startsWith("OK ")) {
+            try {
+                end += Integer.parseInt(status.substring(status.lastIndexOf(' ') + 1));
+            } catch (NumberFormatException e) {
+                // a status line without a count
+            }
+        }
+        return end <= available ? end : -1;
+    }
+    
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+    
+    private static String commandName(String command) {
+        int space = command.indexOf(' ');
+        return space < 0 ? command : command.substring(0, space);
+    }
+    
+    // first lines of a response, enough to see where it went wrong
+    private static String preview(List<String> lines) {
+        String shown = String.join(" | ", lines.subList(0, Math.min(3, lines.size())));
+        return lines.size() > 3 ? shown + " | ... (" + lines.size() + " lines)" : shown;
+    }
+    
+    private static double percentile(long[] sorted, int p) {
+        int index = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+}
@@ -0,0 +1,101 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+
+// one of the threads taking new connections off the listening socket
+// several of them share one ServerSocket, so while one is setting up a connection
+// (options, admission check, starting its handler) another can already take the next
+public class Acceptor extends Thread {
+    private ServerSocket serverSocket;
+    private Board board;
+    private ServerConfig config;
+    private ServerMetrics metrics;
+    private AccessLog accessLog;
+    
+    public Acceptor(int id, ServerSocket serverSocket, Board board, ServerConfig config, ServerMetrics metrics, AccessLog accessLog) {
+        super("acceptor-" + id);
+        this.serverSocket = serverSocket;
+        this.board = board;
+        this.config = config;
+        this.metrics = metrics;
+        this.accessLog = accessLog;
+    }
+    
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                Socket clientSocket = serverSocket.accept();
+                metrics.increment("connections.accepted");
+                
+                // turn the client away politely once we are at the connection limit
+                long active = metrics.add("connections.active", 1);
+                if (config.getMaxConnections() > 0 && active > config.getMaxConnections()) {
+                    metrics.add("connections.active", -1);
+                    metrics.increment("connections.rejected");
+                    accessLog.connection("reject", String.valueOf(clientSocket.getRemoteSocketAddress()), "server_busy");
+                    rejectClient(clientSocket);
+                    continue;
+                }
+                
+                // the handler gives its place back when it ends, so until it is running that is up to us
+                boolean handedOff = false;
+                try {
+                    try {
+                        configureSocket(clientSocket);
+                    } catch (SocketException e) {
+                        // not worth dropping the client over, it just runs with the defaults
+                        metrics.increment("connections.socket_option_errors");
+                    }
+                    accessLog.connection("connect", String.valueOf(clientSocket.getRemoteSocketAddress()), null);
+                    
+                    // create and start a new handler thread for this client
+                    ClientHandler handler = new ClientHandler(clientSocket, board, config, metrics, accessLog);
+                    handler.start();
+                    handedOff = true;
+                } finally {
+                    if (!handedOff) {
+                        metrics.add("connections.active", -1);
+                        closeQuietly(clientSocket);
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Error accepting client connection: " + e.getMessage());
+            } catch (RuntimeException | OutOfMemoryError e) {
+                // most likely no thread could be made for the handler - drop this client, keep accepting
+                System.err.println("Error starting client handler: " + e);
+            }
+        }
+    }
+    
+    // socket options every client connection gets
+    private void configureSocket(Socket socket) throws SocketException {
+        socket.setTcpNoDelay(config.isTcpNoDelay());
+        socket.setKeepAlive(config.isTcpKeepAlive());
+        if (config.getSocketSendBuffer() > 0) {
+            socket.setSendBufferSize(config.getSocketSendBuffer());
+        }
+        // the receive buffer was already set on the listening socket, which accepted sockets inherit
+    }
+    
+    // tell a client we are full and hang up
+    private static void rejectClient(Socket clientSocket) {
+        try {
+            OutputStream out = clientSocket.getOutputStream();
+            out.write("ERROR SERVER_BUSY Too many connections, try again later\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        } catch (IOException e) {
+            // client is gone already
+        } finally {
+            closeQuietly(clientSocket);
+        }
+    }
+    
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+}
@@ -0,0 +1,190 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.locks.LockSupport;
+
+// access and audit log - connection events and one record per command, as key=value lines
+// request threads only drop a record into a lock-free ring; a background thread formats and
+// writes them, rolling the file over when it gets too big. If the writer falls behind and the
+// ring fills up, records are dropped and counted rather than making a client thread wait.
+public class AccessLog {
+    // how long the writer sleeps when there is nothing to write
+    private static final long IDLE_NANOS = 20_000_000L;
+    
+    private static class Record {
+        final long timeMillis;
+        final String event;
+        final String client;
+        final String command;
+        final String result;
+        final long latencyMicros;
+        
+        Record(String event, String client, String command, String result, long latencyMicros) {
+            this.timeMillis = System.currentTimeMillis();
+            this.event = event;
+            this.client = client;
+            this.command = command;
+            this.result = result;
+            this.latencyMicros = latencyMicros;
+        }
+    }
+    
+    private final RingBuffer<Record> ring;
+    private final ServerMetrics metrics;
+    private final Path path;
+    private final long maxBytes;
+    private final int files;
+    
+    // the file could not be opened, so every record is counted as dropped
+    private boolean unavailable;
+    
+    // writer thread only
+    private BufferedWriter writer;
+    private long fileBytes;
+    private long droppedReported;
+    
+    private AccessLog(Path path, ServerConfig config, ServerMetrics metrics) {
+        this.path = path;
+        this.metrics = metrics;
+        this.ring = path == null ? null : new RingBuffer<>(config.getAccessLogBuffer());
+        this.maxBytes = config.getAccessLogMaxBytes();
+        this.files = config.getAccessLogFiles();
+    }
+    
+    // the log the config asks for, started - one that ignores everything if logging is off
+    // a file that cannot be opened is not worth refusing to serve over, so the server runs without
+    // the log and counts what it would have written in access_log.dropped
+    public static AccessLog start(ServerConfig config, ServerMetrics metrics) {
+        if (config.getAccessLog().equals("off")) {
+            return new AccessLog(null, config, metrics);
+        }
+        
+        AccessLog log;
+        try {
+            log = new AccessLog(Paths.get(config.getAccessLog()), config, metrics);
+            log.openFile();
+        } catch (IOException | InvalidPathException e) {
+            System.err.println("Warning: cannot open access log " + config.getAccessLog() + ": "
+                    + e.getClass().getSimpleName() + ", running without it");
+            AccessLog off = new AccessLog(null, config, metrics);
+            off.unavailable = true;
+            return off;
+        }
+        Thread thread = new Thread(log::writeLoop, "access-log-writer");
+        thread.setDaemon(true);
+        thread.start();
+        return log;
+    }
+    
+    public String getPath() {
+        return path == null ? "off" : path.toString();
+    }
+    
+    // a connection came or went - detail is the reason, or null
+    public void connection(String event, String client, String detail) {
+        record(new Record(event, client, null, detail, -1));
+    }
+    
+    // a command finished - the result is OK or the error code
+    public void command(String client, String command, String result, long latencyNanos) {
+        record(new Record("command", client, command, result, latencyNanos / 1000));
+    }
+    
+    private void record(Record record) {
+        if (ring == null ? unavailable : !ring.offer(record)) {
+            metrics.increment("access_log.dropped");
+        }
+    }
+    
+    private void writeLoop() {
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            boolean wrote = false;
+            try {
+                // say how many records were lost since last time, in the log itself
+                long dropped = metrics.get("access_log.dropped");
+                if (dropped > droppedReported) {
+                    line.setLength(0);
+                    line.append(Instant.now()).append(" event=dropped count=").append(dropped - droppedReported);
+                    write(line);
+                    droppedReported = dropped;
+                    wrote = true;
+                }
+                
+                Record record;
+                while ((record = ring.poll()) != null) {
+                    format(record, line);
+                    write(line);
+                    metrics.increment("access_log.records");
+                    wrote = true;
+                }
+                if (!wrote) {
+                    writer.flush();
+                }
+            } catch (IOException e) {
+                // keep going, a full disk should not take the server down with it
+                metrics.increment("access_log.write_errors");
+            }
+            if (!wrote) {
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+        }
+    }
+    
+    private static void format(Record record, StringBuilder line) {
+        line.setLength(0);
+        line.append(Instant.ofEpochMilli(record.timeMillis))
+                .append(" event=").append(record.event)
+                .append(" client=").append(record.client);
+        if (record.command != null) {
+            line.append(" command=").append(record.command);
+        }
+        if (record.result != null) {
+            line.append(record.latencyMicros < 0 ? " reason=" : " result=").append(record.result);
+        }
+        if (record.latencyMicros >= 0) {
+            line.append(" latency_us=").append(record.latencyMicros);
+        }
+    }
+    
+    private void write(StringBuilder line) throws IOException {
+        line.append('\n');
+        int bytes = line.length();
+        if (maxBytes > 0 && fileBytes > 0 && fileBytes + bytes > maxBytes) {
+            rotate();
+        }
+        writer.append(line);
+        fileBytes += bytes;
+    }
+    
+    // access.log becomes access.log.1, access.log.1 becomes access.log.2 and so on, the oldest goes
+    private void rotate() throws IOException {
+        writer.close();
+        try {
+            for (int i = files - 1; i >= 1; i--) {
+                Path older = Paths.get(path + "." + i);
+                if (Files.exists(older)) {
+                    Files.move(older, Paths.get(path + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            Files.move(path, Paths.get(path + ".1"), StandardCopyOption.REPLACE_EXISTING);
+            metrics.increment("access_log.rotations");
+        } finally {
+            openFile();
+        }
+    }
+    
+    private void openFile() throws IOException {
+        writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(path,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND), StandardCharsets.UTF_8));
+        fileBytes = Files.size(path);
+    }
+}
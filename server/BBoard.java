@@ -5,24 +5,35 @@ import java.util.*;
 // main server class for the Bulletin Board System
 public class BBoard {
     public static void main(String[] args) {
+        // split off --name=value options
+        List<String> positional = new ArrayList<>(Arrays.asList(args));
+        ServerConfig config;
+        try {
+            config = ServerConfig.parse(positional);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        
         // validate command line arguments
-        if (args.length < 6) {
-            System.err.println("Usage: java BBoard <port> <board_width> <board_height> <note_width> <note_height> <color1> ... <colorN>");
+        if (positional.size() < 6) {
+            System.err.println("Usage: java BBoard [--option=value ...] <port> <board_width> <board_height> <note_width> <note_height> <color1> ... <colorN>");
             System.exit(1);
         }
         
         try {
             // parse arguments
-            int port = Integer.parseInt(args[0]);
-            int boardWidth = Integer.parseInt(args[1]);
-            int boardHeight = Integer.parseInt(args[2]);
-            int noteWidth = Integer.parseInt(args[3]);
-            int noteHeight = Integer.parseInt(args[4]);
+            int port = Integer.parseInt(positional.get(0));
+            int boardWidth = Integer.parseInt(positional.get(1));
+            int boardHeight = Integer.parseInt(positional.get(2));
+            int noteWidth = Integer.parseInt(positional.get(3));
+            int noteHeight = Integer.parseInt(positional.get(4));
             
             // collect colors
             List<String> colors = new ArrayList<>();
-            for (int i = 5; i < args.length; i++) {
-                colors.add(args[i]);
+            for (int i = 5; i < positional.size(); i++) {
+                colors.add(positional.get(i));
             }
             
             // validate inputs
@@ -42,28 +53,58 @@ public class BBoard {
             }
             
             // create the shared board
-            Board board = new Board(boardWidth, boardHeight, noteWidth, noteHeight, colors);
+            Board board = new Board(boardWidth, boardHeight, noteWidth, noteHeight, colors, config);
+            
+            // publish the outbound buffering policy alongside the live counters
+            ServerMetrics metrics = new ServerMetrics();
+            metrics.set("write_queue.limit_bytes", config.getWriteQueueBytes());
+            metrics.set("write_queue.slow_client_timeout_ms", config.getSlowClientTimeoutMs());
+            metrics.set("connections.max", config.getMaxConnections());
+            metrics.set("connections.idle_timeout_ms", config.getIdleTimeoutMs());
+            metrics.set("rate_limit.per_second", config.getRateLimit());
+            metrics.set("notes.default_ttl_seconds", config.getNoteTtlSeconds());
+            metrics.set("notes.max", config.getMaxNotes());
+            metrics.set("notes.max_bytes", config.getMaxNoteBytes());
+            metrics.set("history.max_versions", config.getHistoryVersions());
+            metrics.set("history.max_bytes", config.getHistoryBytes());
+            metrics.set("compression.level", config.isCompression() ? config.getCompressionLevel() : 0);
+            metrics.set("compression.threshold_bytes", config.getCompressionThreshold());
+            metrics.set("connections.acceptors", config.getAcceptors());
+            metrics.set("connections.accept_backlog", config.getAcceptBacklog());
             
-            // start the server
-            ServerSocket serverSocket = new ServerSocket(port);
+            // connection and command records go to a file from a background thread
+            AccessLog accessLog = AccessLog.start(config, metrics);
+            
+            // remove notes whose time to live has run out
+            new NoteExpirer(board, metrics).start();
+            
+            // start the server - the receive buffer has to be set before binding to take effect
+            // for large windows, and the sockets it accepts start out with it
+            ServerSocket serverSocket = new ServerSocket();
+            serverSocket.setReuseAddress(true);
+            if (config.getSocketReceiveBuffer() > 0) {
+                serverSocket.setReceiveBufferSize(config.getSocketReceiveBuffer());
+            }
+            serverSocket.bind(new InetSocketAddress(port), config.getAcceptBacklog());
             System.out.println("Bulletin Board Server started on port " + port);
             System.out.println("Board dimensions: " + boardWidth + "x" + boardHeight);
             System.out.println("Note dimensions: " + noteWidth + "x" + noteHeight);
             System.out.println("Valid colors: " + colors);
+            System.out.println("Access log: " + accessLog.getPath());
+            if (config.getCaptureDir() != null) {
+                System.out.println("Capturing traffic to: " + config.getCaptureDir());
+            }
             System.out.println("Waiting for clients...");
             
-            // accept client connections
-            while (true) {
-                try {
-                    Socket clientSocket = serverSocket.accept();
-                    System.out.println("New client connected: " + clientSocket.getInetAddress());
-                    
-                    // create and start a new handler thread for this client
-                    ClientHandler handler = new ClientHandler(clientSocket, board);
-                    handler.start();
-                } catch (IOException e) {
-                    System.err.println("Error accepting client connection: " + e.getMessage());
-                }
+            // accept client connections on several threads
+            List<Acceptor> acceptors = new ArrayList<>();
+            for (int i = 0; i < config.getAcceptors(); i++) {
+                Acceptor acceptor = new Acceptor(i, serverSocket, board, config, metrics, accessLog);
+                acceptor.start();
+                acceptors.add(acceptor);
+            }
+            for (Acceptor acceptor : acceptors) {
+                acceptor.join();
             }
         } catch (NumberFormatException e) {
             System.err.println("Error: Invalid number format in arguments");
@@ -71,6 +112,8 @@ public class BBoard {
         } catch (IOException e) {
             System.err.println("Error starting server: " + e.getMessage());
             System.exit(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 }
@@ -1,17 +1,97 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
 
 // manages the bulletin board state with synchronized access
 public class Board {
+    // expiry deadlines are rounded up to ticks of this many milliseconds
+    public static final long EXPIRY_TICK_MS = 250;
+    
+    // longest TTL a note can have (ten years), which keeps its deadline in milliseconds well inside a long
+    public static final long MAX_TTL_SECONDS = 10L * 365 * 24 * 60 * 60;
+    
+    // how many notes are looked at to pick one to evict
+    private static final int EVICTION_SAMPLE = 16;
+    
+    // largest board (in possible note origins) that gets a count tree, bigger ones scan instead
+    private static final long MAX_COUNTED_ORIGINS = 1 << 22;
+    
+    // message lengths are counted in buckets this many characters wide, the last one holds the rest
+    private static final int LENGTH_BUCKET_CHARS = 8;
+    private static final int LENGTH_BUCKETS = 32;
+    
+    // a parallel scan hands each core runs of this many notes
+    private static final int SCAN_CHUNK = 16384;
+    
     private int boardWidth;
     private int boardHeight;
     private int noteWidth;
     private int noteHeight;
     private List<String> validColors;
+    
+    // notes in posting order - a removed note stays behind as a tombstone (slot -1) so taking k notes
+    // off costs O(k), and the list is compacted once tombstones are more than half of it
     private List<Note> notes;
+    private int noteCount;
+    private int tombstones;
     private List<Pin> pins;
     
+    // the unpinned notes on the board in no particular order, for eviction to sample from
+    private List<Note> unpinnedNotes;
+    
+    // notes by origin - no two notes can share one, so this answers the overlap check directly
+    private Map<Long, Note> notesByOrigin;
+    private long nextSequence;
+    
+    // bumped by every change, with recent changes kept for GET SINCE
+    private long version;
+    private MutationJournal journal;
+    
+    // stamps commands for traffic captures in the order they ran on the board
+    private long captureOrder;
+    
+    // past versions for GET AT, sharing structure so many can be kept
+    private BoardHistory history;
+    
+    // notes with a time to live, and the ones whose time is up but have not been looked at yet
+    private long defaultTtlSeconds;
+    private TimingWheel<Note> expiryWheel;
+    private ArrayDeque<Note> dueNotes;
+    
+    // capacity limits (0 = none), with a counter standing in for the clock of when notes were last touched
+    private int maxNotes;
+    private long maxNoteBytes;
+    private long noteBytes;
+    private long touchClock;
+    private long evictedNotes;
+    
+    // how many notes have their origin at each point, for COUNT and GET DENSITY (null if too big)
+    private FenwickTree2D originCounts;
+    
+    // statistics the query planner works from
+    private Map<String, Integer> colorCounts;
+    private int[] messageLengths;
+    private long messageChars;
+    
+    // unfiltered and substring GETs on boards this big use every core (0 = never)
+    private int parallelScanThreshold;
+    
     public Board(int boardWidth, int boardHeight, int noteWidth, int noteHeight, List<String> validColors) {
+        this(boardWidth, boardHeight, noteWidth, noteHeight, validColors, new ServerConfig());
+    }
+    
+    public Board(int boardWidth, int boardHeight, int noteWidth, int noteHeight, List<String> validColors, ServerConfig config) {
         this.boardWidth = boardWidth;
         this.boardHeight = boardHeight;
         this.noteWidth = noteWidth;
@@ -19,6 +99,24 @@ public class Board {
         this.validColors = validColors;
         this.notes = new ArrayList<>();
         this.pins = new ArrayList<>();
+        this.unpinnedNotes = new ArrayList<>();
+        this.notesByOrigin = new HashMap<>();
+        this.colorCounts = new HashMap<>();
+        this.messageLengths = new int[LENGTH_BUCKETS];
+        this.journal = new MutationJournal(config.getJournalSize());
+        this.history = new BoardHistory(config.getHistoryVersions(), config.getHistoryBytes());
+        this.defaultTtlSeconds = config.getNoteTtlSeconds();
+        this.expiryWheel = new TimingWheel<>(System.currentTimeMillis() / EXPIRY_TICK_MS);
+        this.dueNotes = new ArrayDeque<>();
+        this.maxNotes = config.getMaxNotes();
+        this.maxNoteBytes = config.getMaxNoteBytes();
+        this.parallelScanThreshold = config.getParallelScanThreshold();
+        
+        int originsWide = Math.max(1, boardWidth - noteWidth + 1);
+        int originsHigh = Math.max(1, boardHeight - noteHeight + 1);
+        if ((long) originsWide * originsHigh <= MAX_COUNTED_ORIGINS) {
+            this.originCounts = new FenwickTree2D(originsWide, originsHigh);
+        }
     }
     
     public int getBoardWidth() {
@@ -41,77 +139,691 @@ public class Board {
         return new ArrayList<>(validColors);
     }
     
-    // POST command - add a new note
-    public synchronized String postNote(int x, int y, String color, String message) {
+    public synchronized long getVersion() {
+        return version;
+    }
+    
+    // notes removed so far to stay within the capacity limits
+    public synchronized long getEvictedNotes() {
+        return evictedNotes;
+    }
+    
+    public BoardHistory getHistory() {
+        return history;
+    }
+    
+    // move to the next version and remember what changed - the history has already been given the change
+    private void recordChange(String change) {
+        version++;
+        journal.append(version, change);
+        history.commit(version);
+    }
+    
+    // the next capture order stamp - taken in the same hold of the lock that runs the command, so
+    // stamps follow the order commands changed and read the board in
+    public synchronized long nextCaptureOrder() {
+        return ++captureOrder;
+    }
+    
+    private static long originKey(int x, int y) {
+        return ((long) x << 32) | (y & 0xffffffffL);
+    }
+    
+    // the checks that do not depend on what is on the board - null if the note is fine
+    // needs no lock, so bulk imports can run it on many threads at once
+    public String checkNote(int x, int y, String color) {
         // validate color
         if (!validColors.contains(color)) {
             return "ERROR COLOUR_NOT_SUPPORTED " + color + " is not a valid color";
         }
         
         // check bounds
-        if (x < 0 || y < 0 || x + noteWidth > boardWidth || y + noteHeight > boardHeight) {
+        if (x < 0 || y < 0 || (long) x + noteWidth > boardWidth || (long) y + noteHeight > boardHeight) {
             return "ERROR OUT_OF_BOUNDS Note exceeds board boundaries";
         }
         
-        // check for complete overlap
-        Note newNote = new Note(x, y, color, message);
-        for (Note existing : notes) {
-            if (newNote.completelyOverlaps(existing, noteWidth, noteHeight)) {
-                return "ERROR COMPLETE_OVERLAP Note overlaps an existing note entirely";
+        return null;
+    }
+    
+    // POST command - add a new note that lives for the server's default time
+    public String postNote(int x, int y, String color, String message) {
+        return postNote(x, y, color, message, defaultTtlSeconds);
+    }
+    
+    // POST TTL=<seconds> - add a new note that is removed after ttlSeconds unless pinned (0 = never)
+    public synchronized String postNote(int x, int y, String color, String message, long ttlSeconds) {
+        String error = checkNote(x, y, color);
+        if (error != null) {
+            return error;
+        }
+        
+        error = addNoteLocked(new Note(x, y, color, message), ttlSeconds);
+        return error != null ? error : "OK NOTE_POSTED";
+    }
+    
+    // add an already checked note unless one sits at the same origin or there is no room for it,
+    // returning the error or null if it was added
+    private String addNoteLocked(Note note, long ttlSeconds) {
+        long key = originKey(note.getX(), note.getY());
+        if (notesByOrigin.containsKey(key)) {
+            return "ERROR COMPLETE_OVERLAP Note overlaps an existing note entirely";
+        }
+        if (!makeRoomLocked(note.approximateBytes())) {
+            return "ERROR BOARD_FULL Board is at capacity and no unpinned note can be evicted";
+        }
+        
+        note.setSequence(nextSequence++);
+        note.setLastTouched(++touchClock);
+        note.setSlot(notes.size());
+        notes.add(note);
+        noteCount++;
+        setUnpinned(note, true);
+        notesByOrigin.put(key, note);
+        trackNote(note, 1);
+        history.putNote(note);
+        if (ttlSeconds > 0) {
+            note.setExpiresAt(System.currentTimeMillis() + Math.min(ttlSeconds, MAX_TTL_SECONDS) * 1000);
+            note.setExpiryTimer(expiryWheel.schedule(note, (note.getExpiresAt() + EXPIRY_TICK_MS - 1) / EXPIRY_TICK_MS));
+        }
+        recordChange("ADD " + note.getX() + " " + note.getY() + " " + note.getColor() + " " + note.getMessage());
+        return null;
+    }
+    
+    // evict least recently touched unpinned notes until one more note of the given size fits,
+    // false (with nothing evicted) if that is not possible
+    private boolean makeRoomLocked(long bytes) {
+        if (maxNoteBytes > 0 && bytes > maxNoteBytes) {
+            return false;
+        }
+        
+        Set<Note> victims = Collections.newSetFromMap(new IdentityHashMap<>());
+        long victimBytes = 0;
+        while ((maxNotes > 0 && noteCount - victims.size() >= maxNotes)
+                || (maxNoteBytes > 0 && noteBytes - victimBytes + bytes > maxNoteBytes)) {
+            Note victim = pickVictimLocked(victims);
+            if (victim == null) {
+                return false;
             }
+            victims.add(victim);
+            victimBytes += victim.approximateBytes();
         }
         
-        notes.add(newNote);
-        return "OK NOTE_POSTED";
+        evictedNotes += victims.size();
+        removeNotesLocked(new ArrayList<>(victims));
+        return true;
     }
     
-    // GET command - retrieve notes based on filters
-    public synchronized String getNotes(String colorFilter, Integer containsX, Integer containsY, String refersToFilter) {
-        List<Note> filtered = new ArrayList<>();
+    // approximate LRU - the stalest note out of a small random sample of the unpinned ones, so picking
+    // one costs the same however big the board is (and however much of it is pinned) and reads never
+    // have to reorder anything. Only when the sample is all notes already taken, which needs most of
+    // the unpinned notes to be, are the rest of them looked at.
+    private Note pickVictimLocked(Set<Note> taken) {
+        if (taken.size() >= unpinnedNotes.size()) {
+            return null;
+        }
+        
+        Note best = null;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < EVICTION_SAMPLE; i++) {
+            Note note = unpinnedNotes.get(random.nextInt(unpinnedNotes.size()));
+            if (!taken.contains(note) && (best == null || note.getLastTouched() < best.getLastTouched())) {
+                best = note;
+            }
+        }
+        if (best != null) {
+            return best;
+        }
         
+        for (Note note : unpinnedNotes) {
+            if (!taken.contains(note)
+                    && (best == null || note.getLastTouched() < best.getLastTouched())) {
+                best = note;
+            }
+        }
+        return best;
+    }
+    
+    // expiry - move the wheel up to now and remove at most limit of the notes that came due,
+    // so the lock is only ever held for a small step. Returns how many notes were removed.
+    // Notes that were removed some other way or have been pinned since are simply skipped,
+    // a pinned one is looked at again when it loses its last pin.
+    public synchronized int expireStep(long now, int limit) {
+        expiryWheel.advance(now / EXPIRY_TICK_MS, dueNotes::add);
+        
+        List<Note> expired = new ArrayList<>();
+        while (expired.size() < limit && !dueNotes.isEmpty()) {
+            Note note = dueNotes.poll();
+            if (note.isOnBoard() && !note.isPinned() && note.getExpiresAt() <= now) {
+                expired.add(note);
+            }
+        }
+        removeNotesLocked(expired);
+        return expired.size();
+    }
+    
+    // take notes off the board, leaving tombstones in the note list so this costs the same however big the board is
+    private void removeNotesLocked(List<Note> removed) {
+        for (Note note : removed) {
+            note.setSlot(-1);
+            noteCount--;
+            tombstones++;
+            setUnpinned(note, false);
+            notesByOrigin.remove(originKey(note.getX(), note.getY()));
+            cancelExpiry(note);
+            trackNote(note, -1);
+            history.removeNote(note);
+            recordChange("REMOVE " + note.getX() + " " + note.getY());
+        }
+        if (tombstones > notes.size() / 2) {
+            compactNotes();
+        }
+    }
+    
+    // drop the tombstones from the note list in one pass - only once they are half of it,
+    // so the pass is paid for by the removals that left them
+    private void compactNotes() {
+        List<Note> live = new ArrayList<>(noteCount);
         for (Note note : notes) {
-            boolean matches = true;
-            
-            // filter by color
-            if (colorFilter != null && !note.getColor().equals(colorFilter)) {
-                matches = false;
+            if (note.isOnBoard()) {
+                note.setSlot(live.size());
+                live.add(note);
             }
-            
-            // filter by contains coordinate
-            if (matches && containsX != null && containsY != null) {
-                if (!note.containsPoint(containsX, containsY, noteWidth, noteHeight)) {
-                    matches = false;
+        }
+        notes = live;
+        tombstones = 0;
+    }
+    
+    // put a note in or take it out of the unpinned list, moving the last one into its place
+    // so either costs O(1)
+    private void setUnpinned(Note note, boolean unpinned) {
+        int slot = note.getUnpinnedSlot();
+        if (unpinned && slot < 0) {
+            note.setUnpinnedSlot(unpinnedNotes.size());
+            unpinnedNotes.add(note);
+        } else if (!unpinned && slot >= 0) {
+            Note last = unpinnedNotes.remove(unpinnedNotes.size() - 1);
+            if (last != note) {
+                unpinnedNotes.set(slot, last);
+                last.setUnpinnedSlot(slot);
+            }
+            note.setUnpinnedSlot(-1);
+        }
+    }
+    
+    // a note leaving the board before its time - drop its timer so the wheel does not keep it alive
+    private void cancelExpiry(Note note) {
+        if (note.getExpiryTimer() != null) {
+            expiryWheel.cancel(note.getExpiryTimer());
+            note.setExpiryTimer(null);
+        }
+    }
+    
+    // all notes that contain a coordinate, in posting order
+    private List<Note> notesContaining(int x, int y) {
+        // on a busy board it is cheaper to look the possible origins up than to scan every note
+        if ((long) noteWidth * noteHeight < noteCount) {
+            return notesByOriginNear(x, y);
+        }
+        
+        List<Note> found = new ArrayList<>();
+        for (Note note : notes) {
+            if (note.isOnBoard() && note.containsPoint(x, y, noteWidth, noteHeight)) {
+                found.add(note);
+            }
+        }
+        return found;
+    }
+    
+    // a note containing (x, y) has its origin at most one note size up and left of it,
+    // so looking up each of those origins finds them all - returned in posting order
+    // the range is clamped to origins a note can have, worked out in long so points near the
+    // int limits cannot wrap around and loop forever
+    private List<Note> notesByOriginNear(int x, int y) {
+        int fromX = (int) Math.max(0L, (long) x - noteWidth + 1);
+        int toX = (int) Math.min((long) x, (long) boardWidth - noteWidth);
+        int fromY = (int) Math.max(0L, (long) y - noteHeight + 1);
+        int toY = (int) Math.min((long) y, (long) boardHeight - noteHeight);
+        
+        List<Note> found = new ArrayList<>();
+        for (int ox = fromX; ox <= toX; ox++) {
+            for (int oy = fromY; oy <= toY; oy++) {
+                Note note = notesByOrigin.get(originKey(ox, oy));
+                if (note != null) {
+                    found.add(note);
                 }
             }
-            
-            // filter by refersTo substring
-            if (matches && refersToFilter != null) {
-                if (!note.getMessage().contains(refersToFilter)) {
-                    matches = false;
+        }
+        found.sort((a, b) -> Long.compare(a.getSequence(), b.getSequence()));
+        return found;
+    }
+    
+    // IMPORT - apply one batch of already parsed and checked records under a single lock
+    // returns how many notes and pins were added and how many records were rejected
+    public synchronized int[] importBatch(List<BulkRecord> batch) {
+        int[] counts = new int[3];
+        for (BulkRecord record : batch) {
+            if (record.getError() != null) {
+                counts[2]++;
+            } else if (record.isNote()) {
+                Note note = new Note(record.getX(), record.getY(), record.getColor(), record.getMessage());
+                counts[addNoteLocked(note, defaultTtlSeconds) == null ? 0 : 2]++;
+            } else {
+                counts[addPinLocked(record.getX(), record.getY()) ? 1 : 2]++;
+            }
+        }
+        return counts;
+    }
+    
+    // EXPORT - hand out up to limit notes posted after the given sequence number as NOTE lines,
+    // returning the sequence number to continue from, or -1 once there are none left
+    public synchronized long exportNotes(long afterSequence, int limit, Consumer<String> lines) {
+        // notes are kept in posting order, so binary search for where to pick up
+        int low = 0;
+        int high = notes.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (notes.get(mid).getSequence() <= afterSequence) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        
+        // removed notes keep their sequence numbers, so the search still works - they are just not sent
+        int i = low;
+        int sent = 0;
+        long last = afterSequence;
+        for (; i < notes.size() && sent < limit; i++) {
+            Note note = notes.get(i);
+            if (note.isOnBoard()) {
+                lines.accept("NOTE " + note.getX() + " " + note.getY() + " " + note.getColor() + " " + note.getMessage());
+                last = note.getSequence();
+                sent++;
+            }
+        }
+        while (i < notes.size() && !notes.get(i).isOnBoard()) {
+            i++;
+        }
+        return i < notes.size() ? last : -1;
+    }
+    
+    // EXPORT - hand out up to limit pins starting at the given position as PIN lines,
+    // returning the position to continue from, or -1 once there are none left
+    public synchronized int exportPins(int from, int limit, Consumer<String> lines) {
+        int end = Math.min(pins.size(), from + limit);
+        for (int i = from; i < end; i++) {
+            lines.accept("PIN " + pins.get(i).getX() + " " + pins.get(i).getY());
+        }
+        return end < pins.size() ? end : -1;
+    }
+    
+    // GET command - retrieve notes based on filters, in whatever order the planner thinks is cheapest
+    public String getNotes(String colorFilter, Integer containsX, Integer containsY, String refersToFilter) {
+        return new String(getNotesEncoded(colorFilter, containsX, containsY, refersToFilter), StandardCharsets.UTF_8).trim();
+    }
+    
+    // the same GET response as UTF-8 bytes, every line ending in a line break, ready to send
+    // each note's line is encoded once and kept, so this is mostly copying bytes
+    public synchronized byte[] getNotesEncoded(String colorFilter, Integer containsX, Integer containsY, String refersToFilter) {
+        QueryPlan plan = planGet(colorFilter, containsX, containsY, refersToFilter);
+        List<Note> filtered;
+        if (plan.getAccess().equals(QueryPlan.NONE)) {
+            filtered = new ArrayList<>();
+        } else if (plan.getAccess().equals(QueryPlan.PARALLEL_SCAN)) {
+            filtered = parallelScan(plan);
+        } else {
+            List<Note> candidates = plan.getAccess().equals(QueryPlan.ORIGIN_LOOKUP)
+                    ? notesByOriginNear(containsX, containsY) : notes;
+            filtered = new ArrayList<>();
+            for (Note note : candidates) {
+                if (note.isOnBoard() && plan.matches(note)) {
+                    filtered.add(note);
                 }
             }
+        }
+        
+        // size the response exactly, marking the notes as recently used on the way
+        long touched = ++touchClock;
+        byte[] header = ("OK " + filtered.size() + "\n").getBytes(StandardCharsets.UTF_8);
+        long length = header.length;
+        for (Note note : filtered) {
+            note.setLastTouched(touched);
+            length += note.getEncodedLine().length;
+        }
+        if (length > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("GET response too large, add filters");
+        }
+        
+        byte[] response = new byte[(int) length];
+        System.arraycopy(header, 0, response, 0, header.length);
+        int position = header.length;
+        for (Note note : filtered) {
+            byte[] line = note.getEncodedLine();
+            System.arraycopy(line, 0, response, position, line.length);
+            position += line.length;
+        }
+        return response;
+    }
+    
+    // filter every note on all cores - each chunk of the note list is matched (and its notes' lines
+    // encoded if they are not yet) on whichever core picks it up, then the chunks are put back in order,
+    // so the result is the same as a plain scan. The caller holds the board lock throughout.
+    private List<Note> parallelScan(QueryPlan plan) {
+        int chunks = (notes.size() + SCAN_CHUNK - 1) / SCAN_CHUNK;
+        List<List<Note>> matches = new ArrayList<>(Collections.nCopies(chunks, null));
+        ForkJoinPool.commonPool().invoke(new ScanTask(plan, 0, chunks, matches));
+        
+        int total = 0;
+        for (List<Note> chunk : matches) {
+            total += chunk.size();
+        }
+        List<Note> filtered = new ArrayList<>(total);
+        for (List<Note> chunk : matches) {
+            filtered.addAll(chunk);
+        }
+        return filtered;
+    }
+    
+    // scans chunks [from, to) of the note list, halving the range until it is one chunk
+    private class ScanTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        
+        private final QueryPlan plan;
+        private final int from;
+        private final int to;
+        private final List<List<Note>> matches;
+        
+        ScanTask(QueryPlan plan, int from, int to, List<List<Note>> matches) {
+            this.plan = plan;
+            this.from = from;
+            this.to = to;
+            this.matches = matches;
+        }
+        
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new ScanTask(plan, from, mid, matches), new ScanTask(plan, mid, to, matches));
+                return;
+            }
             
-            if (matches) {
-                filtered.add(note);
+            List<Note> found = new ArrayList<>();
+            int end = Math.min(notes.size(), (from + 1) * SCAN_CHUNK);
+            for (int i = from * SCAN_CHUNK; i < end; i++) {
+                Note note = notes.get(i);
+                if (note.isOnBoard() && plan.matches(note)) {
+                    note.getEncodedLine();
+                    found.add(note);
+                }
             }
+            matches.set(from, found);
+        }
+    }
+    
+    // EXPLAIN GET - the plan getNotes would use for these filters, without running it
+    public synchronized String explainNotes(String colorFilter, Integer containsX, Integer containsY, String refersToFilter) {
+        List<String> lines = planGet(colorFilter, containsX, containsY, refersToFilter).describe();
+        return "OK PLAN " + lines.size() + "\n" + String.join("\n", lines);
+    }
+    
+    // pick the access path and filter order for a GET from the board statistics
+    private QueryPlan planGet(String colorFilter, Integer containsX, Integer containsY, String refersToFilter) {
+        QueryPlan plan = new QueryPlan();
+        int total = noteCount;
+        boolean contains = containsX != null && containsY != null;
+        
+        // no note covers a point off the board, so there is nothing to read
+        if (contains && (containsX < 0 || containsY < 0 || containsX >= boardWidth || containsY >= boardHeight)) {
+            plan.setAccess(QueryPlan.NONE, 0, 0);
+            return plan;
+        }
+        
+        // the origin counts say exactly how many notes cover the point
+        double containing = 0;
+        if (contains) {
+            int x = containsX;
+            int y = containsY;
+            containing = countOrigins((long) x - noteWidth + 1, (long) y - noteHeight + 1, x, y);
         }
         
-        // build response
+        // probing every origin near the point beats a scan once the board holds more notes than that
+        long probes = (long) noteWidth * noteHeight;
+        boolean lookup = contains && probes + containing * Math.log(containing + 1) < total;
+        if (lookup) {
+            plan.setAccess(QueryPlan.ORIGIN_LOOKUP, probes, containing);
+        } else if (parallelScanThreshold > 0 && total >= parallelScanThreshold) {
+            plan.setAccess(QueryPlan.PARALLEL_SCAN, (double) total / ForkJoinPool.getCommonPoolParallelism(), total);
+        } else {
+            plan.setAccess(QueryPlan.SCAN, total, total);
+        }
+        
+        if (colorFilter != null) {
+            double selectivity = total == 0 ? 0 : (double) colorCounts.getOrDefault(colorFilter, 0) / total;
+            plan.addFilter("color=" + colorFilter, selectivity, 1, note -> note.getColor().equals(colorFilter));
+        }
+        if (contains && !lookup) {
+            int x = containsX;
+            int y = containsY;
+            double selectivity = total == 0 ? 0 : containing / total;
+            plan.addFilter("contains " + x + " " + y, selectivity, 1,
+                    note -> note.containsPoint(x, y, noteWidth, noteHeight));
+        }
+        if (refersToFilter != null) {
+            // a substring search costs about the length of the message
+            double averageLength = total == 0 ? 0 : (double) messageChars / total;
+            plan.addFilter("refersTo=" + refersToFilter, refersToSelectivity(refersToFilter.length(), total),
+                    1 + averageLength / LENGTH_BUCKET_CHARS, note -> note.getMessage().contains(refersToFilter));
+        }
+        return plan;
+    }
+    
+    // guess at the share of messages containing some text of this length: it can only be in
+    // messages at least that long, and of those assume one in ten per character up to three
+    private double refersToSelectivity(int length, int total) {
+        if (length == 0 || total == 0) {
+            return total == 0 ? 0 : 1;
+        }
+        int longEnough = 0;
+        for (int bucket = lengthBucket(length); bucket < LENGTH_BUCKETS; bucket++) {
+            longEnough += messageLengths[bucket];
+        }
+        return (double) longEnough / total * Math.pow(0.1, Math.min(length, 3));
+    }
+    
+    private void appendNoteLine(StringBuilder response, Note note) {
+        response.append("NOTE ")
+                .append(note.getX()).append(" ")
+                .append(note.getY()).append(" ")
+                .append(note.getColor()).append(" ")
+                .append(note.getMessage()).append(" ")
+                .append("PINNED=").append(note.isPinned())
+                .append("\n");
+    }
+    
+    // GET SINCE command - the changes after a version the client already has,
+    // or the whole board if the journal no longer reaches back that far
+    public synchronized String getSince(long fromVersion) {
         StringBuilder response = new StringBuilder();
-        response.append("OK ").append(filtered.size()).append("\n");
-        for (Note note : filtered) {
-            response.append("NOTE ")
-                    .append(note.getX()).append(" ")
-                    .append(note.getY()).append(" ")
-                    .append(note.getColor()).append(" ")
-                    .append(note.getMessage()).append(" ")
-                    .append("PINNED=").append(note.isPinned())
-                    .append("\n");
+        
+        // a delta longer than the board itself is not worth sending
+        List<String> changes = journal.since(fromVersion, version);
+        if (changes != null && changes.size() <= noteCount + pins.size()) {
+            response.append("OK DELTA ").append(fromVersion).append(" ").append(version)
+                    .append(" ").append(changes.size()).append("\n");
+            for (String change : changes) {
+                response.append(change).append("\n");
+            }
+            return response.toString().trim();
         }
         
+        response.append("OK SNAPSHOT ").append(version).append(" ")
+                .append(noteCount + pins.size()).append("\n");
+        for (Note note : notes) {
+            if (note.isOnBoard()) {
+                appendNoteLine(response, note);
+            }
+        }
+        // a pin only holds the notes that were there when it went in, so each PIN line lists the
+        // origins of the notes holding it - the client cannot work that out from the notes alone
+        for (Pin pin : pins) {
+            response.append("PIN ").append(pin.getX()).append(" ").append(pin.getY());
+            for (Note note : notesContaining(pin.getX(), pin.getY())) {
+                if (note.getPins().contains(pin)) {
+                    response.append(" ").append(note.getX()).append(" ").append(note.getY());
+                }
+            }
+            response.append("\n");
+        }
         return response.toString().trim();
     }
     
+    // GET AT - the notes as they were at an earlier version, filtered like GET, in posting order.
+    // Served from the history without taking the board lock, so old boards can be read while
+    // clients keep changing the live one. Null if that version is not kept.
+    public byte[] getNotesAtEncoded(long atVersion, String colorFilter, Integer containsX, Integer containsY, String refersToFilter) {
+        BoardHistory.Version past = history.at(atVersion);
+        if (past == null) {
+            return null;
+        }
+        
+        boolean contains = containsX != null && containsY != null;
+        List<byte[]> lines = new ArrayList<>();
+        long[] length = new long[1];
+        past.getNotes().forEach(note -> {
+            if ((colorFilter == null || note.getColor().equals(colorFilter))
+                    && (!contains || note.containsPoint(containsX, containsY, noteWidth, noteHeight))
+                    && (refersToFilter == null || note.getMessage().contains(refersToFilter))) {
+                lines.add(note.getEncodedLine());
+                length[0] += note.getEncodedLine().length;
+            }
+        });
+        
+        byte[] header = ("OK " + lines.size() + "\n").getBytes(StandardCharsets.UTF_8);
+        if (header.length + length[0] > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("GET response too large, add filters");
+        }
+        byte[] response = new byte[header.length + (int) length[0]];
+        System.arraycopy(header, 0, response, 0, header.length);
+        int position = header.length;
+        for (byte[] line : lines) {
+            System.arraycopy(line, 0, response, position, line.length);
+            position += line.length;
+        }
+        return response;
+    }
+    
+    // GET PINS AT - the pins as they were at an earlier version, in the order they were put in
+    public String getPinsAt(long atVersion) {
+        BoardHistory.Version past = history.at(atVersion);
+        if (past == null) {
+            return versionUnavailable(atVersion);
+        }
+        
+        StringBuilder response = new StringBuilder();
+        response.append("OK ").append(past.getPins().size()).append("\n");
+        past.getPins().forEach(pin -> response.append("PIN ")
+                .append(pin.getX()).append(" ")
+                .append(pin.getY())
+                .append("\n"));
+        return response.toString().trim();
+    }
+    
+    // the error for a GET AT version the history does not have
+    public String versionUnavailable(long atVersion) {
+        if (!history.isEnabled()) {
+            return "ERROR VERSION_UNAVAILABLE Board history is turned off";
+        }
+        long current = history.getNewestVersion();
+        if (atVersion > current) {
+            return "ERROR VERSION_UNAVAILABLE Version " + atVersion + " has not happened yet, the board is at " + current;
+        }
+        return "ERROR VERSION_UNAVAILABLE Version " + atVersion + " is no longer kept, the oldest is "
+                + history.getOldestVersion();
+    }
+    
+    // keep the size, origin counts and query statistics in step as a note comes (+1) or goes (-1)
+    private void trackNote(Note note, int delta) {
+        noteBytes += delta * note.approximateBytes();
+        if (originCounts != null) {
+            originCounts.add(note.getX(), note.getY(), delta);
+        }
+        colorCounts.merge(note.getColor(), delta, Integer::sum);
+        messageLengths[lengthBucket(note.getMessage().length())] += delta;
+        messageChars += delta * note.getMessage().length();
+    }
+    
+    private static int lengthBucket(int length) {
+        return Math.min(length / LENGTH_BUCKET_CHARS, LENGTH_BUCKETS - 1);
+    }
+    
+    // notes with their origin inside [x1, x2] x [y1, y2] - the bounds are long so callers can work
+    // them out without wrapping, and are clamped to where origins can be before counting
+    private int countOrigins(long x1, long y1, long x2, long y2) {
+        x1 = Math.max(x1, 0);
+        y1 = Math.max(y1, 0);
+        x2 = Math.min(x2, (long) boardWidth - noteWidth);
+        y2 = Math.min(y2, (long) boardHeight - noteHeight);
+        if (x1 > x2 || y1 > y2) {
+            return 0;
+        }
+        if (originCounts != null) {
+            return originCounts.count((int) x1, (int) y1, (int) x2, (int) y2);
+        }
+        int count = 0;
+        for (Note note : notes) {
+            if (note.isOnBoard() && note.getX() >= x1 && note.getX() <= x2 && note.getY() >= y1 && note.getY() <= y2) {
+                count++;
+            }
+        }
+        return count;
+    }
+    
+    // COUNT within - how many notes lie entirely inside the rectangle from (x1, y1) to (x2, y2)
+    public synchronized String countWithin(int x1, int y1, int x2, int y2) {
+        if (x1 > x2 || y1 > y2) {
+            return "ERROR INVALID_FORMAT Rectangle corners must be top left then bottom right";
+        }
+        return "OK COUNT " + countOrigins(x1, y1, (long) x2 - noteWidth + 1, (long) y2 - noteHeight + 1);
+    }
+    
+    // GET DENSITY - split the board into cellsX by cellsY cells and count the notes whose origin
+    // falls in each, one ROW line of counts per row of cells
+    public synchronized String getDensity(int cellsX, int cellsY) {
+        // without origin counts each cell would be a scan of every note, so bin them all in one pass
+        int[][] counts = null;
+        if (originCounts == null) {
+            counts = new int[cellsY][cellsX];
+            for (Note note : notes) {
+                if (!note.isOnBoard()) {
+                    continue;
+                }
+                counts[densityCell(note.getY(), cellsY, boardHeight)][densityCell(note.getX(), cellsX, boardWidth)]++;
+            }
+        }
+        
+        StringBuilder response = new StringBuilder();
+        response.append("OK DENSITY ").append(cellsX).append(" ").append(cellsY).append("\n");
+        for (int j = 0; j < cellsY; j++) {
+            int y1 = (int) ((long) j * boardHeight / cellsY);
+            int y2 = (int) ((long) (j + 1) * boardHeight / cellsY) - 1;
+            response.append("ROW");
+            for (int i = 0; i < cellsX; i++) {
+                int x1 = (int) ((long) i * boardWidth / cellsX);
+                int x2 = (int) ((long) (i + 1) * boardWidth / cellsX) - 1;
+                response.append(" ").append(counts != null ? counts[j][i] : countOrigins(x1, y1, x2, y2));
+            }
+            response.append("\n");
+        }
+        return response.toString().trim();
+    }
+    
+    // the cell a coordinate falls in when size is split into cells parts as getDensity splits it,
+    // where cell i starts at i * size / cells
+    private static int densityCell(int coordinate, int cells, int size) {
+        return (int) Math.min(cells - 1, ((coordinate + 1L) * cells - 1) / size);
+    }
+    
     // GET PINS command - retrieve all pins
     public synchronized String getPins() {
         StringBuilder response = new StringBuilder();
@@ -128,30 +840,40 @@ public class Board {
     
     // PIN command - add a pin at coordinate
     public synchronized String addPin(int x, int y) {
-        // find all notes that contain this coordinate
-        List<Note> notesAtPoint = new ArrayList<>();
-        for (Note note : notes) {
-            if (note.containsPoint(x, y, noteWidth, noteHeight)) {
-                notesAtPoint.add(note);
-            }
+        if (!addPinLocked(x, y)) {
+            return "ERROR NO_NOTE_AT_COORDINATE No note contains the given point";
         }
-        
+        return "OK PIN_ADDED";
+    }
+    
+    // pin every note at a coordinate, false if there are none
+    private boolean addPinLocked(int x, int y) {
+        List<Note> notesAtPoint = notesContaining(x, y);
         if (notesAtPoint.isEmpty()) {
-            return "ERROR NO_NOTE_AT_COORDINATE No note contains the given point";
+            return false;
         }
         
         // add pin to the global list
         Pin pin = new Pin(x, y);
         if (!pins.contains(pin)) {
             pins.add(pin);
+            history.addPin(pin);
         }
         
         // add pin to all notes at this coordinate
+        long touched = ++touchClock;
         for (Note note : notesAtPoint) {
+            boolean wasPinned = note.isPinned();
             note.addPin(pin);
+            note.setLastTouched(touched);
+            if (!wasPinned) {
+                setUnpinned(note, false);
+                history.putNote(note);
+            }
         }
         
-        return "OK PIN_ADDED";
+        recordChange("PIN " + x + " " + y);
+        return true;
     }
     
     // UNPIN command - remove a pin at coordinate
@@ -165,12 +887,26 @@ public class Board {
         
         // remove pin from global list
         pins.remove(pin);
+        history.removePin(pin);
         
-        // remove pin from all notes
+        // remove pin from all notes, handing expired ones that are now unpinned back to expiry
+        long now = System.currentTimeMillis();
         for (Note note : notes) {
+            if (!note.isOnBoard()) {
+                continue;
+            }
+            boolean wasPinned = note.isPinned();
             note.removePin(pin);
+            if (wasPinned && !note.isPinned()) {
+                setUnpinned(note, true);
+                history.putNote(note);
+                if (note.getExpiresAt() != 0 && note.getExpiresAt() <= now) {
+                    dueNotes.add(note);
+                }
+            }
         }
         
+        recordChange("UNPIN " + x + " " + y);
         return "OK PIN_REMOVED";
     }
     
@@ -179,19 +915,68 @@ public class Board {
         List<Note> pinnedNotes = new ArrayList<>();
         
         for (Note note : notes) {
-            if (note.isPinned()) {
+            if (note.isOnBoard() && note.isPinned()) {
                 pinnedNotes.add(note);
             }
         }
         
+        // the history gets whichever is fewer, the notes that go or the ones that stay -
+        // the version before keeps the old notes either way
+        boolean rebuild = pinnedNotes.size() < noteCount - pinnedNotes.size();
+        if (rebuild) {
+            history.clearNotes();
+            for (Note note : pinnedNotes) {
+                history.putNote(note);
+            }
+        }
+        for (Note note : notes) {
+            if (note.isOnBoard() && !note.isPinned()) {
+                note.setSlot(-1);
+                note.setUnpinnedSlot(-1);
+                notesByOrigin.remove(originKey(note.getX(), note.getY()));
+                cancelExpiry(note);
+                trackNote(note, -1);
+                if (!rebuild) {
+                    history.removeNote(note);
+                }
+            }
+        }
+        for (int i = 0; i < pinnedNotes.size(); i++) {
+            pinnedNotes.get(i).setSlot(i);
+        }
         notes = pinnedNotes;
+        noteCount = pinnedNotes.size();
+        tombstones = 0;
+        unpinnedNotes.clear();
+        recordChange("SHAKE");
         return "OK SHAKE_COMPLETE";
     }
     
     // CLEAR command - remove all notes and pins
     public synchronized String clear() {
+        for (Note note : notes) {
+            note.setSlot(-1);
+            note.setUnpinnedSlot(-1);
+        }
         notes.clear();
+        noteCount = 0;
+        tombstones = 0;
+        unpinnedNotes.clear();
         pins.clear();
+        notesByOrigin.clear();
+        noteBytes = 0;
+        if (originCounts != null) {
+            originCounts.clear();
+        }
+        colorCounts.clear();
+        Arrays.fill(messageLengths, 0);
+        messageChars = 0;
+        
+        // nothing left to expire, so let go of the timers rather than wait for them
+        expiryWheel = new TimingWheel<>(expiryWheel.getCurrentTick());
+        dueNotes.clear();
+        history.clear();
+        recordChange("CLEAR");
         return "OK BOARD_CLEARED";
     }
 }
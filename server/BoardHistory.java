@@ -0,0 +1,227 @@
+import java.util.HashMap;
+import java.util.Map;
+
+// past versions of the board for GET AT - every change the board records becomes a version holding
+// its notes (by posting order) and pins (by when they were put in) as persistent trees, so a version
+// shares everything that did not change with the one before it and costs about one path through a tree.
+// The oldest versions are dropped to stay within a count and a rough byte budget.
+//
+// the board updates the trees and commits each version while holding its own lock. Looking a version
+// up takes this object's lock only for a moment and versions never change after, so reading an old
+// board never holds up writers.
+public class BoardHistory {
+    // rough heap cost of one tree node, and of the objects that make up one version
+    private static final long NODE_BYTES = 40;
+    private static final long VERSION_BYTES = 96;
+    
+    // the board at one version
+    public static final class Version {
+        private final long version;
+        private final PersistentTree<NoteSnapshot> notes;
+        private final PersistentTree<Pin> pins;
+        
+        // roughly what this version added on top of the one before it, and what it holds in all
+        private final long addedBytes;
+        private final long totalBytes;
+        
+        Version(long version, PersistentTree<NoteSnapshot> notes, PersistentTree<Pin> pins, long addedBytes, long totalBytes) {
+            this.version = version;
+            this.notes = notes;
+            this.pins = pins;
+            this.addedBytes = addedBytes;
+            this.totalBytes = totalBytes;
+        }
+        
+        public long getVersion() {
+            return version;
+        }
+        
+        public PersistentTree<NoteSnapshot> getNotes() {
+            return notes;
+        }
+        
+        public PersistentTree<Pin> getPins() {
+            return pins;
+        }
+    }
+    
+    private final int maxVersions;
+    private final long maxBytes;
+    
+    // the board as it is now - only touched under the board lock
+    private PersistentTree<NoteSnapshot> notes = PersistentTree.empty();
+    private PersistentTree<Pin> pins = PersistentTree.empty();
+    private Map<Pin, Long> pinKeys = new HashMap<>();
+    private long nextPinKey;
+    
+    // tree nodes made up to the last commit, snapshot bytes added since, and the snapshots in the trees now
+    private long committedNodes;
+    private long pendingBytes;
+    private long snapshotBytes;
+    
+    // kept versions in a ring, oldest first - they are consecutive, so version v sits (v - oldest)
+    // places after the start. The ring grows as needed up to maxVersions.
+    private Version[] versions;
+    private int start;
+    private int size;
+    
+    // what every kept version but the oldest added - the oldest holds its whole board
+    private long addedSinceOldest;
+    
+    // keep at most maxVersions versions (0 turns history off) taking about maxBytes (0 = no limit)
+    public BoardHistory(int maxVersions, long maxBytes) {
+        this.maxVersions = maxVersions;
+        this.maxBytes = maxBytes;
+        this.versions = new Version[Math.max(1, Math.min(16, maxVersions))];
+        commit(0);
+    }
+    
+    public boolean isEnabled() {
+        return maxVersions > 0;
+    }
+    
+    // a note was posted, or became pinned or unpinned
+    public void putNote(Note note) {
+        if (isEnabled()) {
+            NoteSnapshot snapshot = note.snapshot();
+            int before = notes.size();
+            notes = notes.put(note.getSequence(), snapshot);
+            pendingBytes += snapshot.approximateBytes();
+            
+            // a pinned or unpinned note takes the place of one about the same size
+            if (notes.size() > before) {
+                snapshotBytes += snapshot.approximateBytes();
+            }
+        }
+    }
+    
+    // a note leaving the board, still as it was put in
+    public void removeNote(Note note) {
+        if (isEnabled()) {
+            notes = notes.remove(note.getSequence());
+            snapshotBytes -= note.snapshot().approximateBytes();
+        }
+    }
+    
+    // drop every note at once, for when rebuilding from the few that are left is cheaper
+    public void clearNotes() {
+        if (isEnabled()) {
+            notes = notes.cleared();
+            snapshotBytes = 0;
+        }
+    }
+    
+    // a pin not already on the board
+    public void addPin(Pin pin) {
+        if (isEnabled() && !pinKeys.containsKey(pin)) {
+            pinKeys.put(pin, nextPinKey);
+            pins = pins.put(nextPinKey++, pin);
+        }
+    }
+    
+    public void removePin(Pin pin) {
+        Long key = pinKeys.remove(pin);
+        if (key != null) {
+            pins = pins.remove(key);
+        }
+    }
+    
+    public void clear() {
+        if (isEnabled()) {
+            notes = notes.cleared();
+            pins = pins.cleared();
+            pinKeys.clear();
+            snapshotBytes = 0;
+        }
+    }
+    
+    // the updates so far make the given version
+    public void commit(long version) {
+        if (!isEnabled()) {
+            return;
+        }
+        long nodes = notes.getNodesCreated() + pins.getNodesCreated();
+        long added = VERSION_BYTES + (nodes - committedNodes) * NODE_BYTES + pendingBytes;
+        long total = (long) (notes.size() + pins.size()) * NODE_BYTES + snapshotBytes;
+        Version committed = new Version(version, notes, pins, added, total);
+        committedNodes = nodes;
+        pendingBytes = 0;
+        
+        synchronized (this) {
+            if (size == versions.length) {
+                grow();
+            }
+            if (size == versions.length) {
+                dropOldest();
+            }
+            versions[(start + size) % versions.length] = committed;
+            if (size > 0) {
+                addedSinceOldest += committed.addedBytes;
+            }
+            size++;
+            
+            // always keep the newest
+            while (maxBytes > 0 && getBytes() > maxBytes && size > 1) {
+                dropOldest();
+            }
+        }
+    }
+    
+    // the next oldest version takes over holding a whole board - with a single slot there is none,
+    // and the version about to be committed starts afresh
+    private void dropOldest() {
+        versions[start] = null;
+        start = (start + 1) % versions.length;
+        size--;
+        if (size > 0) {
+            addedSinceOldest -= versions[start].addedBytes;
+        } else {
+            addedSinceOldest = 0;
+        }
+    }
+    
+    // double the ring, up to maxVersions
+    private void grow() {
+        int capacity = (int) Math.min(maxVersions, 2L * versions.length);
+        if (capacity <= versions.length) {
+            return;
+        }
+        Version[] grown = new Version[capacity];
+        for (int i = 0; i < size; i++) {
+            grown[i] = versions[(start + i) % versions.length];
+        }
+        versions = grown;
+        start = 0;
+    }
+    
+    // the board at the given version, null if it is not kept
+    public synchronized Version at(long version) {
+        if (size == 0) {
+            return null;
+        }
+        long oldest = versions[start].version;
+        if (version < oldest || version >= oldest + size) {
+            return null;
+        }
+        return versions[(start + (int) (version - oldest)) % versions.length];
+    }
+    
+    // oldest version kept, -1 if none
+    public synchronized long getOldestVersion() {
+        return size == 0 ? -1 : versions[start].version;
+    }
+    
+    // the board's current version, -1 if none is kept
+    public synchronized long getNewestVersion() {
+        return size == 0 ? -1 : versions[start].version + size - 1;
+    }
+    
+    public synchronized int getVersionCount() {
+        return size;
+    }
+    
+    // rough bytes the kept versions hold: the whole board at the oldest, and what changed after it
+    public synchronized long getBytes() {
+        return size == 0 ? 0 : versions[start].totalBytes + addedSinceOldest;
+    }
+}
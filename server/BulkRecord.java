@@ -0,0 +1,63 @@
+// one line of an IMPORT stream, either "NOTE x y color message" or "PIN x y"
+public class BulkRecord {
+    private boolean note;
+    private int x;
+    private int y;
+    private String color;
+    private String message;
+    private String error;
+    
+    private BulkRecord() {
+    }
+    
+    // parse and check a line - problems are kept on the record rather than thrown,
+    // so a bad line only rejects itself. Safe to call from many threads at once.
+    public static BulkRecord parse(String line, Board board) {
+        BulkRecord record = new BulkRecord();
+        String[] parts = line.trim().split("\\s+", 5);
+        
+        try {
+            if (parts[0].equals("NOTE") && parts.length == 5) {
+                record.note = true;
+                record.x = Integer.parseInt(parts[1]);
+                record.y = Integer.parseInt(parts[2]);
+                record.color = parts[3];
+                record.message = parts[4];
+                record.error = board.checkNote(record.x, record.y, record.color);
+            } else if (parts[0].equals("PIN") && parts.length == 3) {
+                record.x = Integer.parseInt(parts[1]);
+                record.y = Integer.parseInt(parts[2]);
+            } else {
+                record.error = "ERROR INVALID_FORMAT Expected NOTE x y color message or PIN x y";
+            }
+        } catch (NumberFormatException e) {
+            record.error = "ERROR INVALID_FORMAT Coordinates must be integers";
+        }
+        return record;
+    }
+    
+    public boolean isNote() {
+        return note;
+    }
+    
+    public int getX() {
+        return x;
+    }
+    
+    public int getY() {
+        return y;
+    }
+    
+    public String getColor() {
+        return color;
+    }
+    
+    public String getMessage() {
+        return message;
+    }
+    
+    // why the line was rejected, or null if it is fine so far
+    public String getError() {
+        return error;
+    }
+}
@@ -1,60 +1,248 @@
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
 
 // handles communication with a single client
 public class ClientHandler extends Thread {
+    // how long a DISCONNECT waits for the last responses to reach the client
+    private static final long CLOSE_DRAIN_MS = 2000;
+    
+    // IMPORT lines are checked and applied this many at a time, EXPORT sends this many per chunk
+    private static final int IMPORT_BATCH = 4096;
+    private static final int EXPORT_CHUNK = 1024;
+    
+    // GET DENSITY grids are at most this many cells across and down
+    private static final int MAX_DENSITY_CELLS = 256;
+    
     private Socket socket;
     private Board board;
+    private ServerConfig config;
+    private ServerMetrics metrics;
+    private AccessLog accessLog;
+    private String client;
     private BufferedReader in;
-    private PrintWriter out;
+    private OutboundQueue out;
+    
+    // records this connection's traffic when --capture-dir is set
+    private TrafficCapture capture;
+    
+    // responses of a captured command, held while it has the board's lock and queued once it lets go
+    private List<byte[]> held;
     
-    public ClientHandler(Socket socket, Board board) {
+    // deflates large responses once the client asks with COMPRESS DEFLATE, null until then
+    private ResponseCompressor compressor;
+    
+    // rate limits for this client, overall and per command type
+    private TokenBucket rateLimit;
+    private Map<String, TokenBucket> commandRateLimits = new HashMap<>();
+    
+    public ClientHandler(Socket socket, Board board, ServerConfig config, ServerMetrics metrics, AccessLog accessLog) {
         this.socket = socket;
         this.board = board;
+        this.config = config;
+        this.metrics = metrics;
+        this.accessLog = accessLog;
+        this.client = String.valueOf(socket.getRemoteSocketAddress());
+        
+        if (config.getRateLimit() > 0) {
+            rateLimit = new TokenBucket(config.getRateLimit(), config.getRateBurst());
+        }
+        for (Map.Entry<String, Integer> limit : config.getCommandRateLimits().entrySet()) {
+            commandRateLimits.put(limit.getKey(), new TokenBucket(limit.getValue(), limit.getValue()));
+        }
     }
     
     @Override
     public void run() {
+        boolean clean = false;
         try {
+            // drop clients that go quiet for too long
+            socket.setSoTimeout(config.getIdleTimeoutMs());
+            
             // setup streams
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = new OutboundQueue(new BufferedOutputStream(socket.getOutputStream()),
+                    config.getWriteQueueBytes(), config.getSlowClientTimeoutMs(), metrics);
+            
+            capture = TrafficCapture.open(config, client, metrics);
             
             // send handshake
             sendHandshake();
             
-            // process commands
+            // process commands, but stop reading while the client is behind on its responses
             String command;
-            while ((command = in.readLine()) != null) {
+            while (true) {
+                out.awaitBelowHighWater();
+                if ((command = in.readLine()) == null) {
+                    break;
+                }
                 command = command.trim();
                 if (command.isEmpty()) {
                     continue;
                 }
                 
-                String response = processCommand(command);
-                out.println(response);
+                long started = System.nanoTime();
+                boolean admitted = admit(command);
+                if (!admitted) {
+                    metrics.increment("rate_limit.rejected");
+                }
+                
+                // bulk transfers read or write the stream themselves
+                String response;
+                if (command.equals("IMPORT")) {
+                    record(command);
+                    response = handleImport(admitted);
+                } else if (!admitted) {
+                    record(command);
+                    response = "ERROR RATE_LIMITED Too many commands, slow down";
+                } else if (command.equals("EXPORT")) {
+                    record(command);
+                    handleExport();
+                    accessLog.command(client, "EXPORT", "OK", System.nanoTime() - started);
+                    continue;
+                } else {
+                    response = runCommand(command);
+                }
+                // a null response was already sent as bytes
+                if (response != null) {
+                    send(response);
+                }
+                accessLog.command(client, commandName(command), response == null ? "OK" : resultCode(response),
+                        System.nanoTime() - started);
                 
                 // check if client disconnected
                 if (command.equals("DISCONNECT")) {
                     break;
                 }
             }
+            clean = true;
+            accessLog.connection("disconnect", client, "closed");
+        } catch (SocketTimeoutException e) {
+            metrics.increment("connections.idle_timeouts");
+            accessLog.connection("disconnect", client, "idle_timeout");
         } catch (IOException e) {
-            System.out.println("Client disconnected: " + socket.getInetAddress());
+            accessLog.connection("disconnect", client, "error");
         } finally {
+            // a client that was evicted or broke the connection gets nothing more
+            if (out != null) {
+                out.close(clean ? CLOSE_DRAIN_MS : 0);
+            }
             try {
                 socket.close();
             } catch (IOException e) {
                 // ignore
             }
+            if (capture != null) {
+                capture.close();
+            }
+            if (compressor != null) {
+                compressor.close();
+            }
+            metrics.add("connections.active", -1);
+        }
+    }
+    
+    // while capturing, a command takes its order stamp and runs in one hold of the board's lock, so
+    // the captures hold commands in the order they really ran and a replay gets the same answers.
+    // Its responses are queued (and compressed) only after the lock is let go, so a client that is
+    // slow to read holds up nobody but itself.
+    private String runCommand(String command) throws IOException {
+        if (capture == null) {
+            return processCommand(command);
+        }
+        List<byte[]> responses = new ArrayList<>();
+        String response;
+        long order;
+        held = responses;
+        try {
+            synchronized (board) {
+                order = board.nextCaptureOrder();
+                response = processCommand(command);
+            }
+        } finally {
+            held = null;
+        }
+        capture.command(command, order);
+        for (byte[] bytes : responses) {
+            enqueue(bytes);
+        }
+        return response;
+    }
+    
+    // record a command that does not run on the board, stamped with when it came in
+    private void record(String line) {
+        if (capture != null) {
+            capture.command(line, board.nextCaptureOrder());
+        }
+    }
+    
+    // every response goes out through here so captures see exactly what the client got,
+    // before any compression, which only changes how it travels
+    private void enqueue(byte[] bytes) throws IOException {
+        if (held != null) {
+            held.add(bytes);
+            return;
+        }
+        if (capture != null) {
+            capture.response(bytes);
         }
+        out.enqueue(compressor == null ? bytes : compressor.compress(bytes));
+    }
+    
+    // first word of a command, which is all the access log keeps of it
+    private static String commandName(String command) {
+        int space = command.indexOf(' ');
+        return space < 0 ? command : command.substring(0, space);
+    }
+    
+    // OK, or the error code of an ERROR response
+    private static String resultCode(String response) {
+        if (!response.startsWith("ERROR ")) {
+            return "OK";
+        }
+        int end = response.indexOf(' ', 6);
+        return end < 0 ? response.substring(6) : response.substring(6, end);
+    }
+    
+    // check the client's rate limits before running a command - DISCONNECT is always let through
+    private boolean admit(String command) {
+        String cmd = commandName(command);
+        if (cmd.equals("DISCONNECT")) {
+            return true;
+        }
+        
+        // check both buckets before taking from either, so a command one of them turns away costs nothing
+        TokenBucket commandLimit = commandRateLimits.get(cmd);
+        if ((rateLimit != null && !rateLimit.hasToken()) || (commandLimit != null && !commandLimit.hasToken())) {
+            return false;
+        }
+        if (rateLimit != null) {
+            rateLimit.tryAcquire();
+        }
+        if (commandLimit != null) {
+            commandLimit.tryAcquire();
+        }
+        return true;
+    }
+    
+    // queue one response (possibly several lines) for the writer thread
+    private void send(String response) throws IOException {
+        enqueue((response + "\n").getBytes(StandardCharsets.UTF_8));
     }
     
     // send initial handshake to client
-    private void sendHandshake() {
-        out.println("OK HANDSHAKE");
-        out.println("BOARD " + board.getBoardWidth() + " " + board.getBoardHeight());
-        out.println("NOTE " + board.getNoteWidth() + " " + board.getNoteHeight());
+    private void sendHandshake() throws IOException {
+        send("OK HANDSHAKE");
+        send("BOARD " + board.getBoardWidth() + " " + board.getBoardHeight());
+        send("NOTE " + board.getNoteWidth() + " " + board.getNoteHeight());
         
         // build colors line
         StringBuilder colorsLine = new StringBuilder("COLOURS ");
@@ -62,11 +250,11 @@ public class ClientHandler extends Thread {
         for (String color : board.getValidColors()) {
             colorsLine.append(" ").append(color);
         }
-        out.println(colorsLine.toString());
+        send(colorsLine.toString());
     }
     
-    // process a command from the client
-    private String processCommand(String command) {
+    // process a command from the client - null if the response has already been queued
+    private String processCommand(String command) throws IOException {
         String[] parts = command.split("\\s+");
         
         if (parts.length == 0) {
@@ -81,7 +269,10 @@ public class ClientHandler extends Thread {
                     return handlePost(command);
                     
                 case "GET":
-                    return handleGet(command);
+                    return handleGet(command, false);
+                
+                case "EXPLAIN":
+                    return handleExplain(command);
                     
                 case "PIN":
                     return handlePin(parts);
@@ -95,40 +286,239 @@ public class ClientHandler extends Thread {
                 case "CLEAR":
                     return board.clear();
                     
+                case "COUNT":
+                    return handleCount(parts);
+                
+                case "STATS":
+                    metrics.set("notes.evicted", board.getEvictedNotes());
+                    metrics.set("history.versions", board.getHistory().getVersionCount());
+                    metrics.set("history.bytes", board.getHistory().getBytes());
+                    return metrics.report();
+                
+                case "COMPRESS":
+                    return handleCompress(parts);
+                
                 case "DISCONNECT":
                     return "OK DISCONNECTED";
                     
                 default:
                     return "ERROR INVALID_FORMAT Unknown command: " + cmd;
             }
+        } catch (IOException e) {
+            // the connection itself failed, not the command
+            throw e;
         } catch (Exception e) {
             return "ERROR INVALID_FORMAT " + e.getMessage();
         }
     }
     
+    // handle IMPORT - read NOTE/PIN lines up to END, checking each batch in parallel
+    // and applying it to the board in one go. The lines are always read, even when the
+    // client is over its rate limit, so they are never mistaken for commands.
+    // While capturing, the whole import is applied at END under the board's lock like a single
+    // command, so a replay sees it land at the same point among other clients' commands - until
+    // then its lines wait in a spool file next to the captures rather than in memory.
+    private String handleImport(boolean admitted) throws IOException {
+        int[] totals = new int[3];
+        List<String> batch = new ArrayList<>(IMPORT_BATCH);
+        Path spool = capture != null && admitted
+                ? Files.createTempFile(Paths.get(config.getCaptureDir()), "import-", ".spool") : null;
+        
+        try {
+            String line;
+            try (BufferedWriter spooled = spool == null ? null : Files.newBufferedWriter(spool, StandardCharsets.UTF_8)) {
+                while ((line = in.readLine()) != null) {
+                    line = line.trim();
+                    if (line.equals("END")) {
+                        break;
+                    }
+                    if (capture != null) {
+                        capture.command(line, 0);
+                    }
+                    if (line.isEmpty() || !admitted) {
+                        continue;
+                    }
+                    
+                    if (spooled != null) {
+                        spooled.write(line);
+                        spooled.write('\n');
+                        continue;
+                    }
+                    batch.add(line);
+                    if (batch.size() == IMPORT_BATCH) {
+                        importBatch(batch, totals);
+                        batch.clear();
+                    }
+                }
+            }
+            if (line == null) {
+                throw new EOFException("Connection closed during IMPORT");
+            }
+            if (!admitted) {
+                record(line);
+                return "ERROR RATE_LIMITED Too many commands, slow down";
+            }
+            
+            if (spool == null) {
+                importBatch(batch, totals);
+            } else {
+                long order;
+                synchronized (board) {
+                    order = board.nextCaptureOrder();
+                    importSpool(spool, totals);
+                }
+                capture.command(line, order);
+            }
+            return "OK IMPORTED " + totals[0] + " " + totals[1] + " " + totals[2];
+        } finally {
+            if (spool != null) {
+                Files.deleteIfExists(spool);
+            }
+        }
+    }
+    
+    // apply a spooled import a batch at a time, so it never has to be in memory all at once
+    private void importSpool(Path spool, int[] totals) throws IOException {
+        List<String> batch = new ArrayList<>(IMPORT_BATCH);
+        try (BufferedReader lines = Files.newBufferedReader(spool, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = lines.readLine()) != null) {
+                batch.add(line);
+                if (batch.size() == IMPORT_BATCH) {
+                    importBatch(batch, totals);
+                    batch.clear();
+                }
+            }
+        }
+        importBatch(batch, totals);
+    }
+    
+    private void importBatch(List<String> lines, int[] totals) {
+        if (lines.isEmpty()) {
+            return;
+        }
+        List<BulkRecord> records = lines.parallelStream()
+                .map(line -> BulkRecord.parse(line, board))
+                .collect(Collectors.toList());
+        int[] counts = board.importBatch(records);
+        for (int i = 0; i < totals.length; i++) {
+            totals[i] += counts[i];
+        }
+    }
+    
+    // handle EXPORT - stream every note and then every pin in chunks, ending with END
+    // only one chunk is built at a time and the client has to keep up before the next one,
+    // so the board is never copied whole. Changes made meanwhile may or may not show up.
+    private void handleExport() throws IOException {
+        send("OK EXPORT");
+        StringBuilder chunk = new StringBuilder();
+        
+        long afterSequence = -1;
+        do {
+            chunk.setLength(0);
+            afterSequence = board.exportNotes(afterSequence, EXPORT_CHUNK, line -> chunk.append(line).append('\n'));
+            sendChunk(chunk);
+        } while (afterSequence >= 0);
+        
+        int pinPosition = 0;
+        do {
+            chunk.setLength(0);
+            pinPosition = board.exportPins(pinPosition, EXPORT_CHUNK, line -> chunk.append(line).append('\n'));
+            sendChunk(chunk);
+        } while (pinPosition >= 0);
+        
+        send("END");
+    }
+    
+    private void sendChunk(StringBuilder chunk) throws IOException {
+        if (chunk.length() > 0) {
+            enqueue(chunk.toString().getBytes(StandardCharsets.UTF_8));
+            out.awaitBelowHighWater();
+        }
+    }
+    
+    // handle COMPRESS DEFLATE or COMPRESS NONE - clients send it right after the handshake
+    // the OK goes out uncompressed and everything after it may be a DEFLATE frame
+    private String handleCompress(String[] parts) throws IOException {
+        if (parts.length != 2 || !(parts[1].equals("DEFLATE") || parts[1].equals("NONE"))) {
+            return "ERROR INVALID_FORMAT COMPRESS requires DEFLATE or NONE";
+        }
+        
+        if (parts[1].equals("NONE")) {
+            if (compressor != null) {
+                compressor.close();
+                compressor = null;
+            }
+            return "OK COMPRESS NONE";
+        }
+        
+        if (!config.isCompression()) {
+            return "ERROR COMPRESSION_UNAVAILABLE Compression is turned off on this server";
+        }
+        send("OK COMPRESS DEFLATE");
+        if (compressor == null) {
+            compressor = new ResponseCompressor(config.getCompressionLevel(), config.getCompressionThreshold(), metrics);
+        }
+        return null;
+    }
+    
     // handle POST command
     private String handlePost(String command) {
-        // parse: POST x y color message
-        String[] parts = command.split("\\s+", 5);
+        // parse: POST [TTL=seconds] x y color message
+        String[] parts = command.split("\\s+", 6);
+        Long ttlSeconds = null;
+        if (parts.length > 1 && parts[1].startsWith("TTL=")) {
+            try {
+                ttlSeconds = Long.parseLong(parts[1].substring(4));
+            } catch (NumberFormatException e) {
+                ttlSeconds = -1L;
+            }
+            if (ttlSeconds < 0) {
+                return "ERROR INVALID_FORMAT TTL must be a whole number of seconds";
+            }
+            if (ttlSeconds > Board.MAX_TTL_SECONDS) {
+                return "ERROR INVALID_FORMAT TTL must be at most " + Board.MAX_TTL_SECONDS + " seconds";
+            }
+        } else {
+            parts = command.split("\\s+", 5);
+        }
+        int first = ttlSeconds == null ? 1 : 2;
         
-        if (parts.length < 5) {
+        if (parts.length < first + 4) {
             return "ERROR INVALID_FORMAT POST requires coordinates, color, and message";
         }
         
         try {
-            int x = Integer.parseInt(parts[1]);
-            int y = Integer.parseInt(parts[2]);
-            String color = parts[3];
-            String message = parts[4];
+            int x = Integer.parseInt(parts[first]);
+            int y = Integer.parseInt(parts[first + 1]);
+            String color = parts[first + 2];
+            String message = parts[first + 3];
             
-            return board.postNote(x, y, color, message);
+            if (ttlSeconds == null) {
+                return board.postNote(x, y, color, message);
+            }
+            return board.postNote(x, y, color, message, ttlSeconds);
         } catch (NumberFormatException e) {
             return "ERROR INVALID_FORMAT Coordinates must be integers";
         }
     }
     
-    // handle GET command
-    private String handleGet(String command) {
+    // handle EXPLAIN GET - show the plan a filtered GET would use
+    private String handleExplain(String command) throws IOException {
+        String get = command.substring(7).trim();
+        String[] parts = get.split("\\s+");
+        if (!parts[0].equals("GET")) {
+            return "ERROR INVALID_FORMAT EXPLAIN requires a GET command";
+        }
+        if (parts.length >= 2 && (parts[1].equals("PINS") || parts[1].equals("SINCE") || parts[1].equals("DENSITY")
+                || parts[1].equals("AT"))) {
+            return "ERROR INVALID_FORMAT EXPLAIN only covers GET with note filters";
+        }
+        return handleGet(get, true);
+    }
+    
+    // handle GET command, or just explain how it would be answered
+    private String handleGet(String command, boolean explain) throws IOException {
         String[] parts = command.split("\\s+");
         
         // check for GET PINS
@@ -136,6 +526,47 @@ public class ClientHandler extends Thread {
             return board.getPins();
         }
         
+        // check for GET PINS AT <version>
+        if (parts.length >= 3 && parts[1].equals("PINS")) {
+            if (parts.length != 4 || !parts[2].equals("AT")) {
+                return "ERROR INVALID_FORMAT GET PINS takes no filters, only AT and a version";
+            }
+            try {
+                return board.getPinsAt(Long.parseLong(parts[3]));
+            } catch (NumberFormatException e) {
+                return "ERROR INVALID_FORMAT Version must be an integer";
+            }
+        }
+        
+        // check for GET DENSITY <cellsX> <cellsY>
+        if (parts.length >= 2 && parts[1].equals("DENSITY")) {
+            if (parts.length != 4) {
+                return "ERROR INVALID_FORMAT GET DENSITY requires the number of cells across and down";
+            }
+            try {
+                int cellsX = Integer.parseInt(parts[2]);
+                int cellsY = Integer.parseInt(parts[3]);
+                if (cellsX < 1 || cellsY < 1 || cellsX > MAX_DENSITY_CELLS || cellsY > MAX_DENSITY_CELLS) {
+                    return "ERROR INVALID_FORMAT Cell counts must be between 1 and " + MAX_DENSITY_CELLS;
+                }
+                return board.getDensity(cellsX, cellsY);
+            } catch (NumberFormatException e) {
+                return "ERROR INVALID_FORMAT Cell counts must be integers";
+            }
+        }
+        
+        // check for GET SINCE <version>
+        if (parts.length >= 2 && parts[1].equals("SINCE")) {
+            if (parts.length != 3) {
+                return "ERROR INVALID_FORMAT GET SINCE requires a version";
+            }
+            try {
+                return board.getSince(Long.parseLong(parts[2]));
+            } catch (NumberFormatException e) {
+                return "ERROR INVALID_FORMAT Version must be an integer";
+            }
+        }
+        
         // parse filtered GET
         String colorFilter = null;
         Integer containsX = null;
@@ -145,13 +576,31 @@ public class ClientHandler extends Thread {
         // simple approach: parse the command string
         String remaining = command.substring(3).trim(); // Remove "GET"
         
-        if (remaining.isEmpty()) {
+        // GET AT <version> [filters] reads the board as it was at that version
+        Long atVersion = null;
+        if (parts.length >= 2 && parts[1].equals("AT")) {
+            if (parts.length < 3) {
+                return "ERROR INVALID_FORMAT GET AT requires a version";
+            }
+            try {
+                atVersion = Long.parseLong(parts[2]);
+            } catch (NumberFormatException e) {
+                return "ERROR INVALID_FORMAT Version must be an integer";
+            }
+            remaining = remaining.substring(2).trim().substring(parts[2].length()).trim();
+        }
+        
+        if (remaining.isEmpty() && atVersion == null) {
             // GET with no filters - return all notes
-            return board.getNotes(null, null, null, null);
+            if (explain) {
+                return board.explainNotes(null, null, null, null);
+            }
+            enqueue(board.getNotesEncoded(null, null, null, null));
+            return null;
         }
         
         // parse filters in order: color, contains, refersTo
-        String[] filters = remaining.split("\\s+");
+        String[] filters = remaining.isEmpty() ? new String[0] : remaining.split("\\s+");
         int i = 0;
         
         while (i < filters.length) {
@@ -206,7 +655,39 @@ public class ClientHandler extends Thread {
             }
         }
         
-        return board.getNotes(colorFilter, containsX, containsY, refersToFilter);
+        if (explain) {
+            return board.explainNotes(colorFilter, containsX, containsY, refersToFilter);
+        }
+        
+        if (atVersion != null) {
+            byte[] past = board.getNotesAtEncoded(atVersion, colorFilter, containsX, containsY, refersToFilter);
+            if (past == null) {
+                return board.versionUnavailable(atVersion);
+            }
+            enqueue(past);
+            return null;
+        }
+        
+        // the board hands back the response already encoded, so it goes straight to the queue
+        enqueue(board.getNotesEncoded(colorFilter, containsX, containsY, refersToFilter));
+        return null;
+    }
+    
+    // handle COUNT within x1 y1 x2 y2
+    private String handleCount(String[] parts) {
+        if (parts.length != 6 || !parts[1].equals("within")) {
+            return "ERROR INVALID_FORMAT COUNT requires within x1 y1 x2 y2";
+        }
+        
+        try {
+            int x1 = Integer.parseInt(parts[2]);
+            int y1 = Integer.parseInt(parts[3]);
+            int x2 = Integer.parseInt(parts[4]);
+            int y2 = Integer.parseInt(parts[5]);
+            return board.countWithin(x1, y1, x2, y2);
+        } catch (NumberFormatException e) {
+            return "ERROR INVALID_FORMAT Coordinates must be integers";
+        }
     }
     
     // handle PIN command
@@ -0,0 +1,161 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// CPU spent compressing GET responses against the bytes it saves, at each deflate level
+// the server side runs ResponseCompressor as the client handler does, the client side inflates with one
+// reused Inflater as ResponseReader does. Delivery times add the wire time at a few link speeds to the
+// CPU time on both ends, so they are what one GET costs on an otherwise idle link and machine.
+//
+//   java CompressionBenchmark [largest_board_size]
+public class CompressionBenchmark {
+    private static final String[] WORDS = {"meeting", "room", "lunch", "today", "tomorrow", "free", "pizza",
+        "lost", "keys", "found", "call", "ext", "sale", "bike", "tutor", "wanted", "study", "group", "cs372",
+        "exam", "review", "friday", "monday", "parking", "notice", "please", "return", "mug", "kitchen"};
+    private static final String[] COLORS = {"red", "blue", "green", "yellow", "white"};
+    
+    // link speeds to price the bytes at, in megabits per second
+    private static final double[] LINKS_MBIT = {2, 10, 100, 1000};
+    
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    
+    public static void main(String[] args) throws DataFormatException {
+        int largest = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        
+        System.out.println("small responses - what the threshold decides (level 1)");
+        Board small = fill(256);
+        for (int notes : new int[] {1, 4, 16, 64, 256}) {
+            byte[] response = first(small.getNotesEncoded(null, null, null, null), notes);
+            Result r = measure(response, 1, Math.max(200, 200_000 / notes));
+            System.out.printf("  %6d bytes: %5.1f%% of the size, %6.1f us to deflate, %6.1f us to inflate%n",
+                    response.length, 100.0 * r.sent / response.length, r.deflateMs * 1000, r.inflateMs * 1000);
+        }
+        
+        for (int size = 10_000; size <= largest; size *= 10) {
+            byte[] response = fill(size).getNotesEncoded(null, null, null, null);
+            int rounds = Math.max(3, 20_000_000 / response.length);
+            
+            System.out.printf("%n%d notes, %.1f MB GET%n", size, response.length / 1e6);
+            StringBuilder header = new StringBuilder("  level     sent   deflate   inflate");
+            for (double link : LINKS_MBIT) {
+                header.append(String.format("  %7s", link >= 1000 ? (int) (link / 1000) + "Gbit/s" : (int) link + "Mbit/s"));
+            }
+            System.out.println(header);
+            
+            System.out.print(row("off", response.length, 0, 0, response.length));
+            for (int level : new int[] {1, 3, 6, 9}) {
+                Result r = measure(response, level, rounds);
+                System.out.print(row(String.valueOf(level), r.sent, r.deflateMs, r.inflateMs, response.length));
+            }
+        }
+    }
+    
+    private static String row(String level, long sent, double deflateMs, double inflateMs, long raw) {
+        StringBuilder row = new StringBuilder(String.format("  %5s %7.1f%% %7.1fms %7.1fms", level,
+                100.0 * sent / raw, deflateMs, inflateMs));
+        for (double link : LINKS_MBIT) {
+            double wireMs = sent * 8 / (link * 1e6) * 1000;
+            row.append(String.format("  %6.0fms", deflateMs + wireMs + inflateMs));
+        }
+        return row.append("\n").toString();
+    }
+    
+    private static final class Result {
+        long sent;
+        double deflateMs;
+        double inflateMs;
+    }
+    
+    // deflate and inflate one response over and over, timed by CPU so the numbers are per core
+    private static Result measure(byte[] response, int level, int rounds) throws DataFormatException {
+        ResponseCompressor compressor = new ResponseCompressor(level, 0, new ServerMetrics());
+        Inflater inflater = new Inflater();
+        byte[] inflated = new byte[response.length + 1];
+        Result result = new Result();
+        
+        // warm up both ends
+        for (int i = 0; i < Math.min(rounds, 5); i++) {
+            inflate(inflater, compressor.compress(response), inflated);
+        }
+        
+        byte[] frame = null;
+        long start = THREADS.getCurrentThreadCpuTime();
+        for (int i = 0; i < rounds; i++) {
+            frame = compressor.compress(response);
+        }
+        result.deflateMs = (THREADS.getCurrentThreadCpuTime() - start) / 1e6 / rounds;
+        result.sent = frame.length;
+        
+        start = THREADS.getCurrentThreadCpuTime();
+        for (int i = 0; i < rounds; i++) {
+            inflate(inflater, frame, inflated);
+        }
+        result.inflateMs = (THREADS.getCurrentThreadCpuTime() - start) / 1e6 / rounds;
+        
+        compressor.close();
+        inflater.end();
+        return result;
+    }
+    
+    // inflate a frame past its header line, as the client does - responses sent as they are need nothing
+    private static int inflate(Inflater inflater, byte[] frame, byte[] into) throws DataFormatException {
+        if (frame[0] != 'D') {
+            return frame.length;
+        }
+        int body = 0;
+        while (frame[body++] != '\n') {
+            // skip the header
+        }
+        inflater.reset();
+        inflater.setInput(frame, body, frame.length - body);
+        int length = 0;
+        while (!inflater.finished() && length < into.length) {
+            length += inflater.inflate(into, length, into.length - length);
+        }
+        return length;
+    }
+    
+    // the status line and the first notes of a GET response
+    private static byte[] first(byte[] response, int notes) {
+        int end = 0;
+        for (int lines = 0; lines <= notes; end++) {
+            if (response[end] == '\n') {
+                lines++;
+            }
+        }
+        return Arrays.copyOf(response, end);
+    }
+    
+    // a busy board of short notes in a few colors, about one in ten pinned
+    private static Board fill(int size) {
+        int side = (int) Math.ceil(Math.sqrt(size)) + 1;
+        List<String> options = new ArrayList<>(Arrays.asList("--parallel-scan-threshold=0", "--history-versions=0"));
+        Board board = new Board(side * 10, side * 10, 8, 8, Arrays.asList(COLORS), ServerConfig.parse(options));
+        Random random = new Random(42);
+        
+        List<BulkRecord> batch = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            StringBuilder message = new StringBuilder();
+            int words = 2 + random.nextInt(5);
+            for (int w = 0; w < words; w++) {
+                message.append(w == 0 ? "" : " ").append(WORDS[random.nextInt(WORDS.length)]);
+            }
+            if (random.nextInt(4) == 0) {
+                message.append(" ").append(random.nextInt(10000));
+            }
+            int x = random.nextInt(side * 10 - 8);
+            int y = random.nextInt(side * 10 - 8);
+            batch.add(BulkRecord.parse("NOTE " + x + " " + y + " " + COLORS[random.nextInt(COLORS.length)] + " " + message, board));
+            if (random.nextInt(10) == 0) {
+                batch.add(BulkRecord.parse("PIN " + (x + 1) + " " + (y + 1), board));
+            }
+        }
+        board.importBatch(batch);
+        return board;
+    }
+}
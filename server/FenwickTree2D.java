@@ -0,0 +1,58 @@
+import java.util.Arrays;
+
+// 2D binary indexed tree of counts on a width x height grid
+// adding to a point and counting a rectangle both cost O(log width * log height)
+// not thread safe - Board only touches it while holding its own lock
+// the cells are one flat array, row i at i * (height + 1), so a very wide and short grid does not
+// turn into millions of tiny arrays each paying for its own header
+public class FenwickTree2D {
+    private final int width;
+    private final int height;
+    private final int stride;
+    private final int[] tree;
+    
+    // width * height is kept small by Board, so the (width + 1) * (height + 1) cells fit in an int
+    public FenwickTree2D(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.stride = height + 1;
+        this.tree = new int[Math.multiplyExact(width + 1, stride)];
+    }
+    
+    public void add(int x, int y, int delta) {
+        for (int i = x + 1; i <= width; i += i & -i) {
+            int row = i * stride;
+            for (int j = y + 1; j <= height; j += j & -j) {
+                tree[row + j] += delta;
+            }
+        }
+    }
+    
+    // total of every point with coordinates in [x1, x2] and [y1, y2], the edges are clamped to the grid
+    public int count(int x1, int y1, int x2, int y2) {
+        x1 = Math.max(x1, 0);
+        y1 = Math.max(y1, 0);
+        x2 = Math.min(x2, width - 1);
+        y2 = Math.min(y2, height - 1);
+        if (x1 > x2 || y1 > y2) {
+            return 0;
+        }
+        return prefix(x2, y2) - prefix(x1 - 1, y2) - prefix(x2, y1 - 1) + prefix(x1 - 1, y1 - 1);
+    }
+    
+    // total of every point up to and including (x, y)
+    private int prefix(int x, int y) {
+        int sum = 0;
+        for (int i = x + 1; i > 0; i -= i & -i) {
+            int row = i * stride;
+            for (int j = y + 1; j > 0; j -= j & -j) {
+                sum += tree[row + j];
+            }
+        }
+        return sum;
+    }
+    
+    public void clear() {
+        Arrays.fill(tree, 0);
+    }
+}
@@ -0,0 +1,90 @@
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// throughput and allocation of large unfiltered GETs, as the client handler runs them
+// the first GET on a board encodes every note's line, later ones reuse them. For comparison the
+// old path is timed too - the whole response built as one String and encoded again to be sent -
+// run over copies of the same notes, since the board no longer has it
+//
+//   java GetBenchmark [largest_board_size]
+public class GetBenchmark {
+    public static void main(String[] args) {
+        int largest = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        
+        for (int size = 10_000; size <= largest; size *= 10) {
+            List<Note> copies = new ArrayList<>();
+            Board board = fill(size, copies);
+            
+            int oldRounds = Math.max(5, 2_000_000 / size);
+            for (int i = 0; i < 3; i++) {
+                oldGet(copies);
+            }
+            long allocated = threads.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            for (int i = 0; i < oldRounds; i++) {
+                oldGet(copies);
+            }
+            double oldMs = (System.nanoTime() - start) / 1e6 / oldRounds;
+            double oldMb = (threads.getThreadAllocatedBytes(thread) - allocated) / 1e6 / oldRounds;
+            
+            allocated = threads.getThreadAllocatedBytes(thread);
+            start = System.nanoTime();
+            int length = board.getNotesEncoded(null, null, null, null).length;
+            double firstMs = (System.nanoTime() - start) / 1e6;
+            double firstMb = (threads.getThreadAllocatedBytes(thread) - allocated) / 1e6;
+            
+            int rounds = Math.max(5, 2_000_000 / size);
+            for (int i = 0; i < 3; i++) {
+                board.getNotesEncoded(null, null, null, null);
+            }
+            allocated = threads.getThreadAllocatedBytes(thread);
+            start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                board.getNotesEncoded(null, null, null, null);
+            }
+            double ms = (System.nanoTime() - start) / 1e6 / rounds;
+            double mb = (threads.getThreadAllocatedBytes(thread) - allocated) / 1e6 / rounds;
+            
+            System.out.printf("%8d notes, %.1f MB response: old String path %.2f ms / %.1f MB allocated, "
+                    + "first GET %.2f ms / %.1f MB allocated, then %.2f ms (%.0f MB/s) / %.1f MB allocated per GET%n",
+                    size, length / 1e6, oldMs, oldMb, firstMs, firstMb, ms, length / 1e6 / (ms / 1000), mb);
+        }
+    }
+    
+    // what an unfiltered GET cost before lines were cached: Board built the response as a String,
+    // and ClientHandler encoded it again to queue it
+    private static byte[] oldGet(List<Note> notes) {
+        StringBuilder response = new StringBuilder();
+        response.append("OK ").append(notes.size()).append("\n");
+        for (Note note : notes) {
+            response.append("NOTE ")
+                    .append(note.getX()).append(" ")
+                    .append(note.getY()).append(" ")
+                    .append(note.getColor()).append(" ")
+                    .append(note.getMessage()).append(" ")
+                    .append("PINNED=").append(note.isPinned())
+                    .append("\n");
+        }
+        return (response.toString().trim() + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+    
+    // a board of size notes, with a copy of each note put in copies for the old path
+    private static Board fill(int size, List<Note> copies) {
+        int side = (int) Math.ceil(Math.sqrt(size)) + 1;
+        List<String> options = new ArrayList<>(Arrays.asList("--parallel-scan-threshold=0"));
+        Board board = new Board(side, side, 1, 1, Arrays.asList("red", "blue"), ServerConfig.parse(options));
+        
+        List<BulkRecord> batch = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            batch.add(BulkRecord.parse("NOTE " + (i % side) + " " + (i / side) + " red note number " + i, board));
+            copies.add(new Note(i % side, i / side, "red", "note number " + i));
+        }
+        board.importBatch(batch);
+        return board;
+    }
+}
@@ -0,0 +1,48 @@
+import java.util.ArrayList;
+import java.util.List;
+
+// the last few board changes, one protocol line each, so clients can catch up with GET SINCE
+// entry i (counting from the oldest kept) describes the change that produced version firstVersion + i
+// not thread safe - Board only touches it while holding its own lock
+public class MutationJournal {
+    private final String[] entries;
+    private int start;
+    private int size;
+    private long firstVersion = 1;
+    
+    public MutationJournal(int capacity) {
+        this.entries = new String[capacity];
+    }
+    
+    // record the change that produced the given version, dropping the oldest entry when full
+    public void append(long version, String entry) {
+        if (entries.length == 0) {
+            firstVersion = version + 1;
+            return;
+        }
+        
+        if (size == entries.length) {
+            start = (start + 1) % entries.length;
+            size--;
+            firstVersion++;
+        }
+        if (size == 0) {
+            firstVersion = version;
+        }
+        entries[(start + size) % entries.length] = entry;
+        size++;
+    }
+    
+    // every change after fromVersion up to currentVersion, or null if some of them were already dropped
+    public List<String> since(long fromVersion, long currentVersion) {
+        if (fromVersion < firstVersion - 1 || fromVersion > currentVersion) {
+            return null;
+        }
+        
+        List<String> changes = new ArrayList<>((int) (currentVersion - fromVersion));
+        for (long v = fromVersion + 1; v <= currentVersion; v++) {
+            changes.add(entries[(start + (int) (v - firstVersion)) % entries.length]);
+        }
+        return changes;
+    }
+}
@@ -8,6 +8,21 @@ public class Note {
     private String color;
     private String message;
     private List<Pin> pins;
+    private long sequence;
+    private long expiresAt;
+    private long lastTouched;
+    
+    // where the note sits in the board's note list, -1 once it has left the board
+    private int slot = -1;
+    
+    // where the note sits in the board's list of unpinned notes, -1 if it is not in it
+    private int unpinnedSlot = -1;
+    
+    // the note's timer in the board's expiry wheel, null if it has none
+    private TimingWheel.Timer<Note> expiryTimer;
+    
+    // this note as it is now, made on first use - only the pinned flag ever changes it
+    private NoteSnapshot snapshot;
     
     public Note(int x, int y, String color, String message) {
         this.x = x;
@@ -33,6 +48,82 @@ public class Note {
         return message;
     }
     
+    // position in posting order, assigned by the board
+    public long getSequence() {
+        return sequence;
+    }
+    
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+    
+    // when the note expires in epoch milliseconds, 0 if it never does
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+    
+    public void setExpiresAt(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+    
+    public int getSlot() {
+        return slot;
+    }
+    
+    public void setSlot(int slot) {
+        this.slot = slot;
+    }
+    
+    public boolean isOnBoard() {
+        return slot >= 0;
+    }
+    
+    public int getUnpinnedSlot() {
+        return unpinnedSlot;
+    }
+    
+    public void setUnpinnedSlot(int unpinnedSlot) {
+        this.unpinnedSlot = unpinnedSlot;
+    }
+    
+    public TimingWheel.Timer<Note> getExpiryTimer() {
+        return expiryTimer;
+    }
+    
+    public void setExpiryTimer(TimingWheel.Timer<Note> expiryTimer) {
+        this.expiryTimer = expiryTimer;
+    }
+    
+    // when the note was last posted, matched by GET or pinned, as a board-wide counter
+    // only written while holding the board lock, so touching it costs readers nothing extra
+    public long getLastTouched() {
+        return lastTouched;
+    }
+    
+    public void setLastTouched(long lastTouched) {
+        this.lastTouched = lastTouched;
+    }
+    
+    // rough heap cost of the note, including its snapshot, for the board's byte budget
+    public long approximateBytes() {
+        return 160 + 3L * message.length();
+    }
+    
+    // "NOTE x y color message PINNED=..." plus the line break, as UTF-8 ready to send
+    public byte[] getEncodedLine() {
+        return snapshot().getEncodedLine();
+    }
+    
+    // an unchanging copy of the note for board history, shared until the note is next (un)pinned
+    public NoteSnapshot snapshot() {
+        NoteSnapshot current = snapshot;
+        if (current == null) {
+            current = new NoteSnapshot(x, y, color, message, isPinned());
+            snapshot = current;
+        }
+        return current;
+    }
+    
     public List<Pin> getPins() {
         return pins;
     }
@@ -56,12 +147,17 @@ public class Note {
     // add a pin to this note
     public void addPin(Pin pin) {
         if (!pins.contains(pin)) {
+            if (pins.isEmpty()) {
+                snapshot = null;
+            }
             pins.add(pin);
         }
     }
     
     // remove a pin from this note
     public void removePin(Pin pin) {
-        pins.remove(pin);
+        if (pins.remove(pin) && pins.isEmpty()) {
+            snapshot = null;
+        }
     }
 }
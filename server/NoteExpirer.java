@@ -0,0 +1,35 @@
+// background thread that takes expired notes off the board a small batch at a time
+// each batch is its own short trip through the board lock, so clients are never held up
+// behind one long sweep - a full batch means more may be waiting, so it goes straight again
+public class NoteExpirer extends Thread {
+    private static final int BATCH = 256;
+    
+    private Board board;
+    private ServerMetrics metrics;
+    
+    public NoteExpirer(Board board, ServerMetrics metrics) {
+        super("note-expirer");
+        this.board = board;
+        this.metrics = metrics;
+        setDaemon(true);
+    }
+    
+    @Override
+    public void run() {
+        while (true) {
+            int removed = board.expireStep(System.currentTimeMillis(), BATCH);
+            if (removed > 0) {
+                metrics.add("notes.expired", removed);
+            }
+            if (removed == BATCH) {
+                Thread.yield();
+                continue;
+            }
+            try {
+                Thread.sleep(Board.EXPIRY_TICK_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
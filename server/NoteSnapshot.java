@@ -0,0 +1,59 @@
+import java.nio.charset.StandardCharsets;
+
+// a note as it was at one point - never changes, so board history can share it between versions
+// and readers can use it without the board lock. A note makes a new one each time it is pinned
+// or loses its last pin.
+public final class NoteSnapshot {
+    private final int x;
+    private final int y;
+    private final String color;
+    private final String message;
+    private final boolean pinned;
+    
+    // the GET response line, "NOTE x y color message PINNED=..." plus the line break, as UTF-8
+    private final byte[] encodedLine;
+    
+    public NoteSnapshot(int x, int y, String color, String message, boolean pinned) {
+        this.x = x;
+        this.y = y;
+        this.color = color;
+        this.message = message;
+        this.pinned = pinned;
+        this.encodedLine = ("NOTE " + x + " " + y + " " + color + " " + message + " PINNED=" + pinned + "\n")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+    
+    public int getX() {
+        return x;
+    }
+    
+    public int getY() {
+        return y;
+    }
+    
+    public String getColor() {
+        return color;
+    }
+    
+    public String getMessage() {
+        return message;
+    }
+    
+    public boolean isPinned() {
+        return pinned;
+    }
+    
+    // check if this note contains a given point
+    public boolean containsPoint(int px, int py, int noteWidth, int noteHeight) {
+        return px >= x && px < x + noteWidth && py >= y && py < y + noteHeight;
+    }
+    
+    public byte[] getEncodedLine() {
+        return encodedLine;
+    }
+    
+    // rough heap cost of the snapshot, its line and its message, which it keeps once the note is gone
+    public long approximateBytes() {
+        return 96 + encodedLine.length + message.length();
+    }
+}
@@ -0,0 +1,138 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+
+// bounded buffer of outgoing bytes for one client, drained to the socket by its own writer thread
+public class OutboundQueue {
+    private final OutputStream out;
+    private final ServerMetrics metrics;
+    private final long highWaterBytes;
+    private final long slowClientTimeoutMs;
+    private final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+    private final Thread writer;
+    private long queuedBytes;
+    private boolean closed;
+    private IOException writeError;
+    
+    public OutboundQueue(OutputStream out, long highWaterBytes, long slowClientTimeoutMs, ServerMetrics metrics) {
+        this.out = out;
+        this.highWaterBytes = highWaterBytes;
+        this.slowClientTimeoutMs = slowClientTimeoutMs;
+        this.metrics = metrics;
+        this.writer = new Thread(this::drain, "outbound-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+    
+    // queue bytes for sending - never blocks, a single response may take the queue past its limit
+    public synchronized void enqueue(byte[] chunk) throws IOException {
+        if (writeError != null) {
+            throw writeError;
+        }
+        if (closed) {
+            throw new IOException("Connection closed");
+        }
+        
+        chunks.addLast(chunk);
+        queuedBytes += chunk.length;
+        long total = metrics.add("write_queue.bytes", chunk.length);
+        metrics.max("write_queue.bytes_peak", total);
+        notifyAll();
+    }
+    
+    // block the reading side while the client is behind, and give up on it after the timeout
+    public synchronized void awaitBelowHighWater() throws IOException {
+        if (queuedBytes <= highWaterBytes) {
+            return;
+        }
+        
+        metrics.increment("write_queue.backpressure_waits");
+        long deadline = System.currentTimeMillis() + slowClientTimeoutMs;
+        while (queuedBytes > highWaterBytes && writeError == null && !closed) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                metrics.increment("write_queue.evictions");
+                throw new IOException("Slow client evicted, " + queuedBytes + " bytes unsent");
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for client to read");
+            }
+        }
+        
+        if (writeError != null) {
+            throw writeError;
+        }
+    }
+    
+    public synchronized long getQueuedBytes() {
+        return queuedBytes;
+    }
+    
+    // stop accepting data and wait up to timeoutMs for what is already queued to go out (0 discards it)
+    public void close(long timeoutMs) {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        if (timeoutMs > 0) {
+            try {
+                writer.join(timeoutMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            // anything still here was never sent
+            metrics.add("write_queue.bytes", -queuedBytes);
+            queuedBytes = 0;
+            chunks.clear();
+        }
+    }
+    
+    // writer thread - write chunks in order, flushing whenever the queue runs dry
+    private void drain() {
+        try {
+            while (true) {
+                byte[] chunk;
+                boolean flush;
+                synchronized (this) {
+                    while (chunks.isEmpty() && !closed) {
+                        wait();
+                    }
+                    if (chunks.isEmpty()) {
+                        break;
+                    }
+                    chunk = chunks.peekFirst();
+                }
+                
+                out.write(chunk);
+                
+                synchronized (this) {
+                    if (chunks.peekFirst() != chunk) {
+                        // close() gave up on us while we were writing
+                        break;
+                    }
+                    chunks.removeFirst();
+                    queuedBytes -= chunk.length;
+                    metrics.add("write_queue.bytes", -chunk.length);
+                    flush = chunks.isEmpty();
+                    notifyAll();
+                }
+                if (flush) {
+                    out.flush();
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            synchronized (this) {
+                writeError = e;
+                notifyAll();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+import java.util.ArrayDeque;
+import java.util.function.Consumer;
+
+// immutable map from long keys to values, kept in key order
+// put and remove copy only the nodes on the path to the key and share the rest with the tree
+// they started from, so many versions of a large tree cost little more than one
+//
+// a treap: each node's priority is a hash of its key, so the tree stays balanced on average
+// whatever order keys arrive in, and its shape depends only on which keys are in it
+public final class PersistentTree<V> {
+    private static final PersistentTree<?> EMPTY = new PersistentTree<>(null, 0);
+    
+    private static final class Node<V> {
+        final long key;
+        final V value;
+        final int priority;
+        final Node<V> left;
+        final Node<V> right;
+        final int size;
+        
+        Node(long key, V value, int priority, Node<V> left, Node<V> right) {
+            this.key = key;
+            this.value = value;
+            this.priority = priority;
+            this.left = left;
+            this.right = right;
+            this.size = 1 + size(left) + size(right);
+        }
+    }
+    
+    private final Node<V> root;
+    
+    // nodes made by all the updates that led to this tree, for the history's memory budget
+    private final long nodesCreated;
+    
+    private PersistentTree(Node<V> root, long nodesCreated) {
+        this.root = root;
+        this.nodesCreated = nodesCreated;
+    }
+    
+    @SuppressWarnings("unchecked")
+    public static <V> PersistentTree<V> empty() {
+        return (PersistentTree<V>) EMPTY;
+    }
+    
+    public int size() {
+        return size(root);
+    }
+    
+    public long getNodesCreated() {
+        return nodesCreated;
+    }
+    
+    // this tree with key mapped to value, replacing any value it had
+    public PersistentTree<V> put(long key, V value) {
+        long[] made = new long[1];
+        Node<V> updated = put(root, key, value, made);
+        return new PersistentTree<>(updated, nodesCreated + made[0]);
+    }
+    
+    // this tree without key, or this same tree if the key is not in it
+    public PersistentTree<V> remove(long key) {
+        long[] made = new long[1];
+        Node<V> updated = remove(root, key, made);
+        return updated == root ? this : new PersistentTree<>(updated, nodesCreated + made[0]);
+    }
+    
+    // an empty tree that carries on this one's count of nodes created
+    public PersistentTree<V> cleared() {
+        return new PersistentTree<>(null, nodesCreated);
+    }
+    
+    // every value in key order - iterative, so a reader holds no more than one path of the tree
+    public void forEach(Consumer<V> action) {
+        ArrayDeque<Node<V>> path = new ArrayDeque<>();
+        Node<V> node = root;
+        while (node != null || !path.isEmpty()) {
+            while (node != null) {
+                path.push(node);
+                node = node.left;
+            }
+            node = path.pop();
+            action.accept(node.value);
+            node = node.right;
+        }
+    }
+    
+    private static int size(Node<?> node) {
+        return node == null ? 0 : node.size;
+    }
+    
+    // spreads consecutive keys (note sequence numbers) over the whole int range
+    private static int priority(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+    
+    private static <V> Node<V> node(long key, V value, int priority, Node<V> left, Node<V> right, long[] made) {
+        made[0]++;
+        return new Node<>(key, value, priority, left, right);
+    }
+    
+    private static <V> Node<V> put(Node<V> node, long key, V value, long[] made) {
+        if (node == null) {
+            return node(key, value, priority(key), null, null, made);
+        }
+        if (key == node.key) {
+            return node(key, value, node.priority, node.left, node.right, made);
+        }
+        
+        // put it in the right subtree, then rotate it up past this node if it has the higher priority
+        if (key < node.key) {
+            Node<V> left = put(node.left, key, value, made);
+            if (left.priority > node.priority) {
+                Node<V> right = node(node.key, node.value, node.priority, left.right, node.right, made);
+                return node(left.key, left.value, left.priority, left.left, right, made);
+            }
+            return node(node.key, node.value, node.priority, left, node.right, made);
+        }
+        Node<V> right = put(node.right, key, value, made);
+        if (right.priority > node.priority) {
+            Node<V> left = node(node.key, node.value, node.priority, node.left, right.left, made);
+            return node(right.key, right.value, right.priority, left, right.right, made);
+        }
+        return node(node.key, node.value, node.priority, node.left, right, made);
+    }
+    
+    private static <V> Node<V> remove(Node<V> node, long key, long[] made) {
+        if (node == null) {
+            return null;
+        }
+        if (key == node.key) {
+            return merge(node.left, node.right, made);
+        }
+        if (key < node.key) {
+            Node<V> left = remove(node.left, key, made);
+            return left == node.left ? node : node(node.key, node.value, node.priority, left, node.right, made);
+        }
+        Node<V> right = remove(node.right, key, made);
+        return right == node.right ? node : node(node.key, node.value, node.priority, node.left, right, made);
+    }
+    
+    // join two trees where every key in a is below every key in b
+    private static <V> Node<V> merge(Node<V> a, Node<V> b, long[] made) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        if (a.priority > b.priority) {
+            return node(a.key, a.value, a.priority, a.left, merge(a.right, b, made), made);
+        }
+        return node(b.key, b.value, b.priority, merge(a, b.left, made), b.right, made);
+    }
+}
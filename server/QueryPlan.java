@@ -0,0 +1,105 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Predicate;
+
+// how Board answers one GET - where the candidate notes come from, and which filters run on
+// each candidate in which order. Built by Board from its statistics, EXPLAIN GET prints it.
+public class QueryPlan {
+    // every note in posting order
+    public static final String SCAN = "SCAN";
+    
+    // every note, split into chunks that are filtered on several cores and put back in order
+    public static final String PARALLEL_SCAN = "PARALLEL_SCAN";
+    
+    // only the notes whose origin is close enough to contain the point, found by origin lookups
+    public static final String ORIGIN_LOOKUP = "ORIGIN_LOOKUP";
+    
+    // nothing - the point is off the board, so no note can contain it
+    public static final String NONE = "NONE";
+    
+    private static class Filter {
+        final String name;
+        final double selectivity;
+        final double cost;
+        final Predicate<Note> test;
+        
+        Filter(String name, double selectivity, double cost, Predicate<Note> test) {
+            this.name = name;
+            this.selectivity = selectivity;
+            this.cost = cost;
+            this.test = test;
+        }
+        
+        // cheap filters that throw most notes away go first
+        double rank() {
+            return cost / Math.max(1e-9, 1 - selectivity);
+        }
+    }
+    
+    private String access = SCAN;
+    private double accessCost;
+    private double candidates;
+    private List<Filter> filters = new ArrayList<>();
+    
+    public void setAccess(String access, double accessCost, double candidates) {
+        this.access = access;
+        this.accessCost = accessCost;
+        this.candidates = candidates;
+    }
+    
+    public String getAccess() {
+        return access;
+    }
+    
+    // a filter with the estimated fraction of notes it keeps and its cost per note
+    public void addFilter(String name, double selectivity, double cost, Predicate<Note> test) {
+        filters.add(new Filter(name, selectivity, cost, test));
+        filters.sort(Comparator.comparingDouble(Filter::rank));
+    }
+    
+    public boolean matches(Note note) {
+        for (Filter filter : filters) {
+            if (!filter.test.test(note)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    // estimated number of notes the query returns
+    public double estimatedRows() {
+        double rows = candidates;
+        for (Filter filter : filters) {
+            rows *= filter.selectivity;
+        }
+        return rows;
+    }
+    
+    // estimated work: finding the candidates plus each filter on whatever the earlier ones let through
+    public double estimatedCost() {
+        double cost = accessCost;
+        double rows = candidates;
+        for (Filter filter : filters) {
+            cost += rows * filter.cost;
+            rows *= filter.selectivity;
+        }
+        return cost;
+    }
+    
+    // one line for the access path, one per filter in the order they run, then the totals
+    public List<String> describe() {
+        List<String> lines = new ArrayList<>();
+        lines.add("ACCESS " + access + " candidates=" + format(candidates));
+        for (Filter filter : filters) {
+            lines.add("FILTER " + filter.name + " selectivity=" + format(filter.selectivity) + " cost=" + format(filter.cost));
+        }
+        lines.add("ESTIMATE rows=" + format(estimatedRows()) + " cost=" + format(estimatedCost()));
+        return lines;
+    }
+    
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+}
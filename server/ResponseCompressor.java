@@ -0,0 +1,67 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+// deflates large responses for a client that asked for compression with COMPRESS DEFLATE
+// a compressed response goes out as a "DEFLATE <length> <compressed length>" line followed by the
+// compressed bytes, which inflate to exactly the lines that would have been sent, so it can stand in
+// for any response or EXPORT chunk. The deflater and its work buffer belong to the connection and are
+// reused for every response - the only thing made per response is the frame handed to the write queue.
+public class ResponseCompressor {
+    private final Deflater deflater;
+    private final int threshold;
+    private final ServerMetrics metrics;
+    
+    // grows to the largest compressed response so far, never past the response being compressed
+    private byte[] buffer = new byte[64 * 1024];
+    
+    public ResponseCompressor(int level, int threshold, ServerMetrics metrics) {
+        this.deflater = new Deflater(level);
+        this.threshold = threshold;
+        this.metrics = metrics;
+    }
+    
+    // the bytes to send for a response - a DEFLATE frame, or the response itself if it is under the
+    // threshold or would not come out smaller
+    public byte[] compress(byte[] response) {
+        if (response.length < threshold) {
+            return response;
+        }
+        
+        long started = System.nanoTime();
+        deflater.reset();
+        deflater.setInput(response);
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == buffer.length) {
+                // already as big as the response, so sending it as it is costs less
+                if (length >= response.length) {
+                    metrics.increment("compression.skipped");
+                    return response;
+                }
+                buffer = Arrays.copyOf(buffer, (int) Math.min(response.length, 2L * buffer.length));
+            }
+            length += deflater.deflate(buffer, length, buffer.length - length);
+        }
+        
+        byte[] header = ("DEFLATE " + response.length + " " + length + "\n").getBytes(StandardCharsets.US_ASCII);
+        if (header.length + length >= response.length) {
+            metrics.increment("compression.skipped");
+            return response;
+        }
+        byte[] frame = Arrays.copyOf(header, header.length + length);
+        System.arraycopy(buffer, 0, frame, header.length, length);
+        
+        metrics.increment("compression.responses");
+        metrics.add("compression.bytes_in", response.length);
+        metrics.add("compression.bytes_out", frame.length);
+        metrics.add("compression.micros", (System.nanoTime() - started) / 1000);
+        return frame;
+    }
+    
+    // free the deflater's native memory - the connection is done with it
+    public void close() {
+        deflater.end();
+    }
+}
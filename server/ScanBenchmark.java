@@ -0,0 +1,70 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+// finds where the parallel GET scan starts paying off on this machine
+// fills boards of growing size and times the same GETs with the parallel scan off and forced on
+//
+//   java ScanBenchmark [largest_board_size]
+//
+// the first size where the parallel column wins is a good --parallel-scan-threshold
+public class ScanBenchmark {
+    private static final int ROUNDS = 5;
+    
+    public static void main(String[] args) {
+        int largest = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        System.out.println("cores: " + ForkJoinPool.getCommonPoolParallelism());
+        System.out.printf("%10s  %-16s %12s %12s %8s%n", "notes", "query", "serial ms", "parallel ms", "speedup");
+        
+        for (int size = 10_000; size <= largest; size *= 2) {
+            Board serial = fill(size, 0);
+            Board parallel = fill(size, 1);
+            
+            for (String refersTo : new String[] {null, "7 "}) {
+                double serialMs = time(serial, refersTo);
+                double parallelMs = time(parallel, refersTo);
+                
+                // both paths have to give back exactly the same response
+                if (!serial.getNotes(null, null, null, refersTo).equals(parallel.getNotes(null, null, null, refersTo))) {
+                    throw new IllegalStateException("parallel scan output differs at " + size + " notes");
+                }
+                System.out.printf("%10d  %-16s %12.2f %12.2f %7.2fx%n", size,
+                        refersTo == null ? "GET" : "GET refersTo=7 ", serialMs, parallelMs, serialMs / parallelMs);
+            }
+        }
+    }
+    
+    // a board holding size notes in a grid, scanning in parallel from the given size (0 = never)
+    private static Board fill(int size, int threshold) {
+        int side = (int) Math.ceil(Math.sqrt(size)) + 1;
+        List<String> options = new ArrayList<>(Arrays.asList("--parallel-scan-threshold=" + threshold));
+        Board board = new Board(side, side, 1, 1, Arrays.asList("red", "blue"), ServerConfig.parse(options));
+        
+        List<BulkRecord> batch = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            String line = "NOTE " + (i % side) + " " + (i / side) + " " + (i % 3 == 0 ? "blue" : "red") + " note number " + i;
+            batch.add(BulkRecord.parse(line, board));
+            if (batch.size() == 4096) {
+                board.importBatch(batch);
+                batch.clear();
+            }
+        }
+        board.importBatch(batch);
+        return board;
+    }
+    
+    // best of a few runs after a warm up, in milliseconds
+    private static double time(Board board, String refersTo) {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS + 2; i++) {
+            long start = System.nanoTime();
+            board.getNotes(null, null, null, refersTo);
+            long elapsed = System.nanoTime() - start;
+            if (i >= 2) {
+                best = Math.min(best, elapsed);
+            }
+        }
+        return best / 1e6;
+    }
+}
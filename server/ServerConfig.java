@@ -0,0 +1,372 @@
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// optional server tunables, given as --name=value arguments before the positional ones
+public class ServerConfig {
+    // outbound buffering per connection
+    private int writeQueueBytes = 1024 * 1024;
+    private int slowClientTimeoutMs = 30000;
+    
+    // admission control (0 turns a limit off)
+    private int maxConnections = 0;
+    private int idleTimeoutMs = 0;
+    private int rateLimit = 0;
+    private int rateBurst = 0;
+    private Map<String, Integer> commandRateLimits = new HashMap<>();
+    
+    // listening socket and the options every accepted connection gets (0 buffer size = OS default)
+    private int acceptBacklog = 1024;
+    private int acceptors = 2;
+    private boolean tcpNoDelay = true;
+    private boolean tcpKeepAlive = true;
+    private int socketSendBuffer = 0;
+    private int socketReceiveBuffer = 0;
+    
+    // how many recent changes the board remembers for GET SINCE
+    private int journalSize = 10000;
+    
+    // how long notes live when POST does not say, 0 keeps them until removed
+    private int noteTtlSeconds = 0;
+    
+    // how big the board may grow before old unpinned notes are evicted (0 = no limit)
+    private int maxNotes = 0;
+    private long maxNoteBytes = 0;
+    
+    // access log file ("off" for none), when it rolls over, how many old ones are kept,
+    // and how many records can wait for the writer before new ones are dropped
+    private String accessLog = "access.log";
+    private long accessLogMaxBytes = 10 * 1024 * 1024;
+    private int accessLogFiles = 5;
+    private int accessLogBuffer = 8192;
+    
+    // boards with at least this many notes scan them on several cores for GET (0 = never)
+    private int parallelScanThreshold = 200000;
+    
+    // how many past versions GET AT can reach (0 = none) and roughly how much memory they may take (0 = no limit)
+    private int historyVersions = 10000;
+    private long historyBytes = 256 * 1024 * 1024;
+    
+    // directory each connection's traffic is recorded to for TrafficReplay, null when not capturing
+    private String captureDir = null;
+    
+    // whether clients may ask for deflated responses, how big a response must be before it is
+    // compressed, and the deflate level (1 fastest .. 9 smallest)
+    private boolean compression = true;
+    private int compressionThreshold = 1024;
+    private int compressionLevel = 1;
+    
+    // pulls every --name=value argument out of args and leaves the positional ones
+    public static ServerConfig parse(List<String> args) {
+        Map<String, String> options = new HashMap<>();
+        Iterator<String> it = args.iterator();
+        while (it.hasNext()) {
+            String arg = it.next();
+            if (!arg.startsWith("--")) {
+                continue;
+            }
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("Option " + arg + " must be given as --name=value");
+            }
+            options.put(arg.substring(2, eq), arg.substring(eq + 1));
+            it.remove();
+        }
+        
+        ServerConfig config = new ServerConfig();
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            config.apply(option.getKey(), option.getValue());
+        }
+        return config;
+    }
+    
+    // set a single option by name
+    private void apply(String name, String value) {
+        switch (name) {
+            case "write-queue-bytes":
+                writeQueueBytes = positive(name, value);
+                break;
+            
+            case "slow-client-timeout-ms":
+                slowClientTimeoutMs = positive(name, value);
+                break;
+            
+            case "max-connections":
+                maxConnections = nonNegative(name, value);
+                break;
+            
+            case "idle-timeout-ms":
+                idleTimeoutMs = nonNegative(name, value);
+                break;
+            
+            case "rate-limit":
+                rateLimit = nonNegative(name, value);
+                break;
+            
+            case "rate-burst":
+                rateBurst = positive(name, value);
+                break;
+            
+            case "accept-backlog":
+                acceptBacklog = positive(name, value);
+                break;
+            
+            case "acceptors":
+                acceptors = positive(name, value);
+                break;
+            
+            case "tcp-nodelay":
+                tcpNoDelay = bool(name, value);
+                break;
+            
+            case "tcp-keepalive":
+                tcpKeepAlive = bool(name, value);
+                break;
+            
+            case "socket-send-buffer":
+                socketSendBuffer = nonNegative(name, value);
+                break;
+            
+            case "socket-receive-buffer":
+                socketReceiveBuffer = nonNegative(name, value);
+                break;
+            
+            case "journal-size":
+                journalSize = nonNegative(name, value);
+                break;
+            
+            case "note-ttl-seconds":
+                noteTtlSeconds = nonNegative(name, value);
+                break;
+            
+            case "max-notes":
+                maxNotes = nonNegative(name, value);
+                break;
+            
+            case "access-log":
+                if (value.isEmpty()) {
+                    throw new IllegalArgumentException("Option --" + name + " needs a file name, or off");
+                }
+                accessLog = value;
+                break;
+            
+            case "access-log-max-bytes":
+                accessLogMaxBytes = Long.parseLong(value);
+                if (accessLogMaxBytes < 0) {
+                    throw new IllegalArgumentException("Option --" + name + " must not be negative");
+                }
+                break;
+            
+            case "access-log-files":
+                accessLogFiles = positive(name, value);
+                break;
+            
+            case "access-log-buffer":
+                accessLogBuffer = positive(name, value);
+                break;
+            
+            case "parallel-scan-threshold":
+                parallelScanThreshold = nonNegative(name, value);
+                break;
+            
+            case "history-versions":
+                historyVersions = nonNegative(name, value);
+                break;
+            
+            case "history-bytes":
+                historyBytes = Long.parseLong(value);
+                if (historyBytes < 0) {
+                    throw new IllegalArgumentException("Option --" + name + " must not be negative");
+                }
+                break;
+            
+            case "capture-dir":
+                if (value.isEmpty()) {
+                    throw new IllegalArgumentException("Option --" + name + " needs a directory");
+                }
+                if (!new File(value).isDirectory()) {
+                    throw new IllegalArgumentException("Option --" + name + " must name an existing directory");
+                }
+                captureDir = value;
+                break;
+            
+            case "compression":
+                compression = bool(name, value);
+                break;
+            
+            case "compression-threshold":
+                compressionThreshold = nonNegative(name, value);
+                break;
+            
+            case "compression-level":
+                compressionLevel = positive(name, value);
+                if (compressionLevel > 9) {
+                    throw new IllegalArgumentException("Option --" + name + " must be between 1 and 9");
+                }
+                break;
+            
+            case "max-note-bytes":
+                maxNoteBytes = Long.parseLong(value);
+                if (maxNoteBytes < 0) {
+                    throw new IllegalArgumentException("Option --" + name + " must not be negative");
+                }
+                break;
+            
+            default:
+                // per command limits, e.g. --rate-limit-post=5
+                if (name.startsWith("rate-limit-") && name.length() > 11) {
+                    commandRateLimits.put(name.substring(11).toUpperCase(Locale.ROOT), positive(name, value));
+                    break;
+                }
+                throw new IllegalArgumentException("Unknown option --" + name);
+        }
+    }
+    
+    private static int positive(String name, String value) {
+        int parsed = Integer.parseInt(value);
+        if (parsed <= 0) {
+            throw new IllegalArgumentException("Option --" + name + " must be positive");
+        }
+        return parsed;
+    }
+    
+    private static int nonNegative(String name, String value) {
+        int parsed = Integer.parseInt(value);
+        if (parsed < 0) {
+            throw new IllegalArgumentException("Option --" + name + " must not be negative");
+        }
+        return parsed;
+    }
+    
+    private static boolean bool(String name, String value) {
+        if (!value.equals("true") && !value.equals("false")) {
+            throw new IllegalArgumentException("Option --" + name + " must be true or false");
+        }
+        return value.equals("true");
+    }
+    
+    public int getWriteQueueBytes() {
+        return writeQueueBytes;
+    }
+    
+    public int getSlowClientTimeoutMs() {
+        return slowClientTimeoutMs;
+    }
+    
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+    
+    public int getIdleTimeoutMs() {
+        return idleTimeoutMs;
+    }
+    
+    // commands per second allowed for each client, 0 if unlimited
+    public int getRateLimit() {
+        return rateLimit;
+    }
+    
+    // how many commands a client may send back to back, defaults to one second's worth
+    public int getRateBurst() {
+        return rateBurst > 0 ? rateBurst : Math.max(1, rateLimit);
+    }
+    
+    // per command type limits, keyed by command name
+    public Map<String, Integer> getCommandRateLimits() {
+        return Collections.unmodifiableMap(commandRateLimits);
+    }
+    
+    // connections the OS may hold for us before an acceptor takes them
+    public int getAcceptBacklog() {
+        return acceptBacklog;
+    }
+    
+    public int getAcceptors() {
+        return acceptors;
+    }
+    
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+    
+    public boolean isTcpKeepAlive() {
+        return tcpKeepAlive;
+    }
+    
+    public int getSocketSendBuffer() {
+        return socketSendBuffer;
+    }
+    
+    public int getSocketReceiveBuffer() {
+        return socketReceiveBuffer;
+    }
+    
+    public int getJournalSize() {
+        return journalSize;
+    }
+    
+    public int getNoteTtlSeconds() {
+        return noteTtlSeconds;
+    }
+    
+    public int getMaxNotes() {
+        return maxNotes;
+    }
+    
+    // approximate bytes all notes together may take, 0 if unlimited
+    public long getMaxNoteBytes() {
+        return maxNoteBytes;
+    }
+    
+    public int getParallelScanThreshold() {
+        return parallelScanThreshold;
+    }
+    
+    public String getAccessLog() {
+        return accessLog;
+    }
+    
+    // size at which the access log rolls over, 0 if it never does
+    public long getAccessLogMaxBytes() {
+        return accessLogMaxBytes;
+    }
+    
+    public int getAccessLogFiles() {
+        return accessLogFiles;
+    }
+    
+    public int getAccessLogBuffer() {
+        return accessLogBuffer;
+    }
+    
+    // past versions kept for GET AT, 0 if history is off
+    public int getHistoryVersions() {
+        return historyVersions;
+    }
+    
+    // rough memory budget for those versions, 0 if only the count limits them
+    public long getHistoryBytes() {
+        return historyBytes;
+    }
+    
+    public String getCaptureDir() {
+        return captureDir;
+    }
+    
+    public boolean isCompression() {
+        return compression;
+    }
+    
+    // smallest response, in bytes, worth deflating for a client that asked for it
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+    
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+}
@@ -0,0 +1,57 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// named counters and gauges shared by every connection, reported by the STATS command
+public class ServerMetrics {
+    private final ConcurrentHashMap<String, AtomicLong> values = new ConcurrentHashMap<>();
+    
+    private AtomicLong value(String name) {
+        return values.computeIfAbsent(name, k -> new AtomicLong());
+    }
+    
+    // bump a counter by one
+    public void increment(String name) {
+        value(name).incrementAndGet();
+    }
+    
+    // add to (or subtract from) a counter or gauge
+    public long add(String name, long delta) {
+        return value(name).addAndGet(delta);
+    }
+    
+    // set a gauge to a fixed value
+    public void set(String name, long newValue) {
+        value(name).set(newValue);
+    }
+    
+    // raise a gauge to newValue if it is currently lower
+    public void max(String name, long newValue) {
+        value(name).accumulateAndGet(newValue, Math::max);
+    }
+    
+    public long get(String name) {
+        AtomicLong v = values.get(name);
+        return v == null ? 0 : v.get();
+    }
+    
+    // STATS command - every metric, sorted by name
+    public String report() {
+        Map<String, Long> sorted = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> entry : values.entrySet()) {
+            sorted.put(entry.getKey(), entry.getValue().get());
+        }
+        
+        StringBuilder response = new StringBuilder();
+        response.append("OK ").append(sorted.size()).append("\n");
+        for (Map.Entry<String, Long> entry : sorted.entrySet()) {
+            response.append("STAT ")
+                    .append(entry.getKey()).append(" ")
+                    .append(entry.getValue())
+                    .append("\n");
+        }
+        
+        return response.toString().trim();
+    }
+}
@@ -0,0 +1,167 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+// hierarchical timing wheel - LEVELS wheels of SLOTS slots each, where one slot on level n spans
+// SLOTS^n ticks. Scheduling is O(1), and each tick only looks at one level 0 slot plus, every
+// SLOTS ticks, one slot of the level above being moved down, so no tick ever scans every timer.
+// A cancelled timer lets go of its item straight away and is dropped from its slot when the slot
+// is next looked at, or when cancelled ones outnumber live ones and the whole wheel is swept, so
+// the wheel never holds more than about twice the timers still waiting.
+// not thread safe - Board only touches it while holding its own lock
+public class TimingWheel<T> {
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 4;
+    
+    // furthest ahead a timer can sit before it has to be moved down a level early
+    private static final long MAX_SPAN = 1L << (SLOT_BITS * LEVELS);
+    
+    // cancelled timers are only swept out once there are at least this many
+    private static final int MIN_SWEEP = 1024;
+    
+    // one scheduled item - its item is null once it has fired or been cancelled
+    public static final class Timer<T> {
+        private T item;
+        private final long deadline;
+        
+        private Timer(T item, long deadline) {
+            this.item = item;
+            this.deadline = deadline;
+        }
+    }
+    
+    // slot lists for every level, created on first use
+    private final List<List<Timer<T>>> slots = new ArrayList<>();
+    private final List<Timer<T>> overdue = new ArrayList<>();
+    private long currentTick;
+    
+    // timers still waiting, and cancelled ones still sitting in a slot
+    private int size;
+    private int cancelled;
+    
+    public TimingWheel(long startTick) {
+        this.currentTick = startTick;
+        for (int i = 0; i < SLOTS * LEVELS; i++) {
+            slots.add(null);
+        }
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    public long getCurrentTick() {
+        return currentTick;
+    }
+    
+    // fire item once the wheel reaches deadlineTick - keep the timer to cancel it
+    public Timer<T> schedule(T item, long deadlineTick) {
+        size++;
+        Timer<T> timer = new Timer<>(item, deadlineTick);
+        place(timer);
+        return timer;
+    }
+    
+    // stop a timer from firing and let go of its item - does nothing if it already fired
+    public void cancel(Timer<T> timer) {
+        if (timer.item == null) {
+            return;
+        }
+        timer.item = null;
+        size--;
+        cancelled++;
+        if (cancelled >= MIN_SWEEP && cancelled > size) {
+            sweep();
+        }
+    }
+    
+    // drop every cancelled timer from the slots
+    private void sweep() {
+        for (List<Timer<T>> slot : slots) {
+            if (slot != null) {
+                slot.removeIf(timer -> timer.item == null);
+            }
+        }
+        overdue.removeIf(timer -> timer.item == null);
+        cancelled = 0;
+    }
+    
+    private void place(Timer<T> timer) {
+        if (timer.item == null) {
+            cancelled--;
+            return;
+        }
+        
+        long delta = timer.deadline - currentTick;
+        if (delta <= 0) {
+            overdue.add(timer);
+            return;
+        }
+        
+        // too far out - park it on the top level, it gets placed again when that slot comes round
+        long target = delta < MAX_SPAN ? timer.deadline : currentTick + MAX_SPAN - 1;
+        int level = 0;
+        while (level < LEVELS - 1 && target - currentTick >= 1L << (SLOT_BITS * (level + 1))) {
+            level++;
+        }
+        
+        int index = level * SLOTS + (int) ((target >>> (SLOT_BITS * level)) & (SLOTS - 1));
+        List<Timer<T>> slot = slots.get(index);
+        if (slot == null) {
+            slot = new ArrayList<>();
+            slots.set(index, slot);
+        }
+        slot.add(timer);
+    }
+    
+    // move the wheel forward to targetTick, handing every timer that came due to expired
+    public void advance(long targetTick, Consumer<T> expired) {
+        fire(overdue, expired);
+        
+        while (currentTick < targetTick) {
+            currentTick++;
+            
+            // entering a new slot on a higher level - spread its timers over the levels below
+            for (int level = 1; level < LEVELS; level++) {
+                if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+                    break;
+                }
+                int index = level * SLOTS + (int) ((currentTick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+                List<Timer<T>> cascade = slots.get(index);
+                if (cascade != null) {
+                    slots.set(index, null);
+                    for (Timer<T> timer : cascade) {
+                        place(timer);
+                    }
+                }
+            }
+            
+            int index = (int) (currentTick & (SLOTS - 1));
+            List<Timer<T>> due = slots.get(index);
+            if (due != null) {
+                slots.set(index, null);
+                fire(due, expired);
+            }
+            fire(overdue, expired);
+        }
+    }
+    
+    private void fire(List<Timer<T>> due, Consumer<T> expired) {
+        if (due.isEmpty()) {
+            return;
+        }
+        List<Timer<T>> copy = new ArrayList<>(due);
+        due.clear();
+        for (Timer<T> timer : copy) {
+            T item = timer.item;
+            if (item == null) {
+                cancelled--;
+                continue;
+            }
+            timer.item = null;
+            size--;
+            expired.accept(item);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+// token bucket rate limiter - refills at ratePerSecond up to burst tokens, one token per command
+// only used from its own client's thread, so it needs no locking
+public class TokenBucket {
+    private final double ratePerNano;
+    private final double burst;
+    private double tokens;
+    private long lastRefill;
+    
+    public TokenBucket(double ratePerSecond, double burst) {
+        this.ratePerNano = ratePerSecond / 1_000_000_000.0;
+        this.burst = burst;
+        this.tokens = burst;
+        this.lastRefill = System.nanoTime();
+    }
+    
+    // take a token if one is available
+    public boolean tryAcquire() {
+        if (!hasToken()) {
+            return false;
+        }
+        tokens -= 1;
+        return true;
+    }
+    
+    // whether a token is available, without taking it
+    public boolean hasToken() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefill) * ratePerNano);
+        lastRefill = now;
+        return tokens >= 1;
+    }
+}
@@ -0,0 +1,120 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// records one connection's traffic for TrafficReplay - every command line the client sent (trimmed,
+// blank lines left out) and every response queued for it, each stamped with a microsecond time
+//
+// file format, one file per connection named <start millis>-<connection number>.bbcap:
+//   "BBCAP2", start time (epoch microseconds, 8 bytes), client address (DataOutput UTF),
+//   the server's rate limit options as command line arguments, "" if none (DataOutput UTF)
+//   then records of: type byte ('C' line from the client, 'R' response bytes),
+//   microseconds since start (varint), for 'C' only the order stamp (varint),
+//   length (varint), that many bytes of UTF-8
+//
+// ClientHandler takes each command's order stamp from the board in the same hold of the board's
+// lock that runs the command, so the replayer can put commands from different connections back in
+// the order they ran. Lines of an IMPORT are stamped 0, the import is placed by its END.
+// BBCAP1 files have no rate limits or order stamps and are ordered by time instead.
+public class TrafficCapture implements Closeable {
+    private static final AtomicLong connections = new AtomicLong();
+    private static final long EPOCH_MICROS = System.currentTimeMillis() * 1000;
+    private static final long EPOCH_NANOS = System.nanoTime();
+    
+    private final DataOutputStream out;
+    private final long startMicros = micros();
+    private boolean failed;
+    
+    private TrafficCapture(Path file, String client, String rateLimits) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024));
+        out.writeBytes("BBCAP2");
+        out.writeLong(EPOCH_MICROS + startMicros);
+        out.writeUTF(client);
+        out.writeUTF(rateLimits);
+    }
+    
+    // a capture for a new connection, or null if capturing is off or the file cannot be made
+    public static TrafficCapture open(ServerConfig config, String client, ServerMetrics metrics) {
+        if (config.getCaptureDir() == null) {
+            return null;
+        }
+        String name = System.currentTimeMillis() + "-" + connections.incrementAndGet() + ".bbcap";
+        try {
+            return new TrafficCapture(Paths.get(config.getCaptureDir(), name), client, rateLimits(config));
+        } catch (IOException e) {
+            metrics.increment("capture.errors");
+            return null;
+        }
+    }
+    
+    // the options that decide which commands come back RATE_LIMITED, so a replay can be run with the same
+    private static String rateLimits(ServerConfig config) {
+        StringBuilder options = new StringBuilder();
+        if (config.getRateLimit() > 0) {
+            options.append("--rate-limit=").append(config.getRateLimit())
+                    .append(" --rate-burst=").append(config.getRateBurst());
+        }
+        for (Map.Entry<String, Integer> limit : new TreeMap<>(config.getCommandRateLimits()).entrySet()) {
+            options.append(options.length() == 0 ? "" : " ").append("--rate-limit-")
+                    .append(limit.getKey().toLowerCase(Locale.ROOT)).append("=").append(limit.getValue());
+        }
+        return options.toString();
+    }
+    
+    // a line as the client sent it, with its place in the order commands ran on the board
+    public void command(String line, long order) {
+        record('C', order, line.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    // bytes about to be sent back
+    public void response(byte[] bytes) {
+        record('R', -1, bytes);
+    }
+    
+    // a failed write just ends the capture, it never takes the connection down
+    private void record(char type, long order, byte[] bytes) {
+        if (failed) {
+            return;
+        }
+        try {
+            out.writeByte(type);
+            writeVarLong(micros() - startMicros);
+            if (type == 'C') {
+                writeVarLong(order);
+            }
+            writeVarLong(bytes.length);
+            out.write(bytes);
+        } catch (IOException e) {
+            failed = true;
+        }
+    }
+    
+    // the shared clock, in microseconds since the first capture was opened
+    private static long micros() {
+        return (System.nanoTime() - EPOCH_NANOS) / 1000;
+    }
+    
+    // 7 bits at a time, low bits first, top bit set while more follow
+    private void writeVarLong(long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+    
+    @Override
+    public void close() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            // nothing more to save
+        }
+    }
+}